@@ -16,17 +16,24 @@
 package com.leafgraph.flowdam;
 
 import com.leafgraph.flowdam.proxy.Proxy;
+import com.leafgraph.flowdam.proxy.ProxySettings;
 import com.leafgraph.flowdam.configuration.ConfigurationSection;
+import com.leafgraph.flowdam.configuration.ConfigurationWatcher;
 import com.leafgraph.flowdam.configuration.YAMLConfigurationHandler;
-import com.leafgraph.flowdam.openflow.Type;
+import com.leafgraph.flowdam.netty.Warmup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -35,6 +42,14 @@ import java.util.Map;
  */
 public class Flowdam {
     private static Map<String,Proxy> proxies = new HashMap<>();
+    /** Proxies removed or replaced by a reload which were still draining when last checked, waited for on exit. */
+    private static List<Proxy> drainingProxies = new ArrayList<>();
+    /** Configuration file proxies are read from. */
+    private static File configFile;
+    /** File written once ready, or null if readiness is only logged. */
+    private static Path readyFile;
+    /** Flag to specify if Flowdam is draining its proxies to exit, after which the configuration is not reloaded. */
+    private static boolean stopping = false;
 
     public static Logger logger = LoggerFactory.getLogger(Flowdam.class);
 
@@ -44,7 +59,7 @@ public class Flowdam {
      * @param args arguments from operating system
      */
     public static void main(String[] args) {
-        File configFile = new File("config.yml");
+        configFile = new File("config.yml");
 
         if (args.length > 0) {
             configFile = new File(args[0]);
@@ -65,47 +80,206 @@ public class Flowdam {
             return;
         }
 
-        ConfigurationSection proxiesConfig = config.getConfigurationSection("proxies");
+        /* Warm up alongside binding, switches are accepted meanwhile but are not held up for long. */
+        int warmupIterations = config.getInteger("warmupIterations", 500);
+        Thread warmup = new Thread(() -> {
+            long started = System.currentTimeMillis();
+            long messages = Warmup.run(warmupIterations);
+            logger.info("Warmed up with " + messages + " messages in " + (System.currentTimeMillis() - started) + "ms");
+        }, "flowdam-warmup");
+        warmup.start();
 
-        for (String proxyName : proxiesConfig.getKeys(false)) {
-            logger.info("Reading " + proxyName);
-            ConfigurationSection proxyConfig = proxiesConfig.getConfigurationSection(proxyName);
+        if (!applyProxies(config.getConfigurationSection("proxies"))) {
+            logger.error("Unable to start every proxy, exiting.");
+            System.exit(1);
+        }
 
-            if (!proxyConfig.isSet("localPort") || !proxyConfig.isSet("remotePort") || !proxyConfig.isSet("remoteAddress")) {
-                logger.warn("Missing Critical " + proxyName);
-                /* Fail this proxy . */
-                continue;
+        try {
+            warmup.join();
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        signalReady(config.getString("readyFile"));
+
+        /* Exiting, such as on SIGTERM, drains every proxy first, another Flowdam may already be listening alongside. */
+        Runtime.getRuntime().addShutdownHook(new Thread(Flowdam::shutdown, "flowdam-shutdown"));
+
+        if (config.getBoolean("watchConfiguration", false)) {
+            new ConfigurationWatcher(configFile.toPath(), Flowdam::reload).start();
+        }
+    }
+
+    /**
+     * Report that every proxy is listening and warmed up, by logging and optionally by writing a file listing the
+     * proxies which is removed again once draining to exit, for supervisors and health checks to wait for.
+     *
+     * @param readyFileName path of the file to write, or null to only log
+     */
+    private static void signalReady(String readyFileName) {
+        List<String> lines = new ArrayList<>();
+
+        for (Map.Entry<String, Proxy> entry : proxies.entrySet()) {
+            lines.add(entry.getKey() + " " + entry.getValue().getSettings().getLocalAddress());
+        }
+
+        if (readyFileName != null) {
+            try {
+                readyFile = Paths.get(readyFileName);
+                Files.write(readyFile, lines, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                logger.warn("Unable to write " + readyFileName + ": " + e);
             }
+        }
 
-            InetSocketAddress localAddress;
+        logger.info("Ready, listening for " + String.join(", ", lines));
+    }
 
-            if (proxyConfig.isSet("localAddress")) {
-                localAddress = new InetSocketAddress(proxyConfig.getString("localAddress"), proxyConfig.getInteger("localPort"));
-            } else {
-                localAddress = new InetSocketAddress(proxyConfig.getInteger("localPort"));
+    /**
+     * Drain every proxy and wait for them to shut down, which they do once their switches have disconnected or the
+     * drain timeout has passed. The listening sockets close straight away, so any Flowdam started alongside with
+     * reusePort set takes every new connection from then on.
+     */
+    private static synchronized void shutdown() {
+        stopping = true;
+
+        if (readyFile != null) {
+            try {
+                Files.deleteIfExists(readyFile);
+            } catch (IOException e) {
+                logger.warn("Unable to remove " + readyFile + ": " + e);
             }
+        }
+
+        logger.info("Draining every proxy before exiting");
+
+        for (Proxy proxy : proxies.values()) {
+            proxy.drain();
+        }
+
+        for (Proxy proxy : proxies.values()) {
+            proxy.awaitTermination();
+        }
+
+        for (Proxy proxy : drainingProxies) {
+            proxy.awaitTermination();
+        }
+
+        logger.info("Every proxy has shut down");
+    }
+
+    /**
+     * Drain a proxy which is being removed or replaced, remembering it until it has shut down so that exiting waits
+     * for its switches too.
+     *
+     * @param proxy proxy to drain
+     */
+    private static void drain(Proxy proxy) {
+        proxy.drain();
+        drainingProxies.removeIf(Proxy::isTerminated);
+        drainingProxies.add(proxy);
+    }
+
+    /**
+     * Read the configuration file again and apply it to the running proxies, if it can be read. Switches connected
+     * to proxies which are kept stay connected.
+     */
+    public static synchronized void reload() {
+        if (stopping) {
+            return;
+        }
+
+        logger.info("Reloading " + configFile);
+
+        ConfigurationSection config;
+
+        try {
+            config = new YAMLConfigurationHandler().loadFromFile(configFile);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to reload " + configFile + ", keeping the running configuration: " + e);
+            return;
+        }
+
+        if (!config.isConfigurationSection("proxies")) {
+            /* Most likely a file caught half written, rather than a wish to stop every proxy. */
+            logger.warn("No proxies, keeping the running configuration.");
+            return;
+        }
+
+        if (!applyProxies(config.getConfigurationSection("proxies"))) {
+            logger.error("Unable to start every proxy, the rest of the configuration has been applied.");
+        }
+    }
 
-            InetSocketAddress remoteAddress = new InetSocketAddress(proxyConfig.getString("remoteAddress"), proxyConfig.getInteger("remotePort"));
+    /**
+     * Bring the running proxies in line with their configuration. New proxies are started, proxies no longer
+     * configured are drained and proxies which are kept have their settings replaced, unless the addresses they
+     * listen on have changed, in which case they are drained and replaced.
+     *
+     * New proxies all begin binding before any is waited for, so that they come up together.
+     *
+     * @param proxiesConfig configuration section holding every proxy
+     * @return true if every new proxy is listening, false if any could not be started
+     */
+    private static synchronized boolean applyProxies(ConfigurationSection proxiesConfig) {
+        List<String> proxyNames = proxiesConfig.getKeys(false);
+        Map<String, Proxy> starting = new LinkedHashMap<>();
 
-            List<Type> loggedTypes = new ArrayList<>();
+        for (Iterator<Map.Entry<String, Proxy>> iterator = proxies.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, Proxy> entry = iterator.next();
 
-            if (proxyConfig.isConfigurationSection("loggedTypes")) {
-                ConfigurationSection loggedTypesConfig = proxyConfig.getConfigurationSection("loggedTypes");
+            if (!proxyNames.contains(entry.getKey())) {
+                logger.info("Draining " + entry.getKey());
+                drain(entry.getValue());
+                iterator.remove();
+            }
+        }
 
-                for (String typeName : loggedTypesConfig.getKeys(false)) {
-                    Type type = Type.valueOf(typeName);
+        for (String proxyName : proxyNames) {
+            logger.info("Reading " + proxyName);
+            Proxy proxy = proxies.get(proxyName);
+            ProxySettings settings;
 
-                    if (type == null) {
-                        /* Fail */
-                    } else {
-                        loggedTypes.add(type);
-                    }
-                }
+            try {
+                settings = new ProxySettings(proxyName, proxiesConfig.getConfigurationSection(proxyName), proxy != null ? proxy.getSettings() : null);
+            } catch (IllegalArgumentException e) {
+                logger.warn(e.getMessage());
+                /* Fail this proxy, leaving it as it was if already running. */
+                continue;
             }
 
-            Proxy proxy = new Proxy(localAddress, remoteAddress, loggedTypes);
-            proxies.put(proxyName, proxy);
-            logger.info("Started " + proxyName);
+            if (proxy != null && !settings.isSameListener(proxy.getSettings())) {
+                /* Listening sockets can't be moved, so the old proxy keeps its switches while a new one listens. */
+                logger.info("Draining " + proxyName + " to listen on " + settings.getLocalAddress());
+                drain(proxy);
+                proxy = null;
+            }
+
+            if (proxy == null) {
+                proxy = new Proxy(settings);
+                proxy.start();
+                starting.put(proxyName, proxy);
+                proxies.remove(proxyName);
+            } else {
+                proxy.setSettings(settings);
+                logger.info("Reconfigured " + proxyName);
+            }
         }
+
+        boolean started = true;
+
+        for (Map.Entry<String, Proxy> entry : starting.entrySet()) {
+            try {
+                entry.getValue().awaitStarted();
+                proxies.put(entry.getKey(), entry.getValue());
+                logger.info("Started " + entry.getKey());
+            } catch (IOException e) {
+                logger.error("Failed to start " + entry.getKey() + ": " + e.getMessage());
+                drain(entry.getValue());
+                started = false;
+            }
+        }
+
+        return started;
     }
 }
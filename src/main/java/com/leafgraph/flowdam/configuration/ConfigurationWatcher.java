@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.configuration;
+
+import com.leafgraph.flowdam.Flowdam;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * ConfigurationWatcher watches a configuration file for changes on a daemon thread, running a callback once the file
+ * has been written. The directory holding the file is watched rather than the file itself, so that editors which
+ * replace the file by renaming a new one over it are noticed too.
+ */
+public class ConfigurationWatcher implements Runnable {
+    /** Milliseconds to wait after a change for any further writes, as editors often write a file in several steps. */
+    private static final long SETTLE_DELAY = 500;
+
+    /** Configuration file to watch. */
+    private Path file;
+    /** Callback run after the file has changed. */
+    private Runnable onChange;
+
+    /**
+     * Construct a new ConfigurationWatcher.
+     *
+     * @param file configuration file to watch
+     * @param onChange callback run on the watcher thread after the file has changed
+     */
+    public ConfigurationWatcher(Path file, Runnable onChange) {
+        this.file = file.toAbsolutePath();
+        this.onChange = onChange;
+    }
+
+    /**
+     * Start watching on a new daemon thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "flowdam-configuration-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Watch the file until the thread is interrupted or the directory can no longer be watched.
+     */
+    @Override
+    public void run() {
+        Path directory = file.getParent();
+
+        try (WatchService watchService = directory.getFileSystem().newWatchService()) {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = isChanged(key);
+
+                if (!key.reset()) {
+                    Flowdam.logger.warn("No longer watching " + file + ", its directory has gone");
+                    return;
+                }
+
+                if (!changed) {
+                    continue;
+                }
+
+                /* Let the file settle, absorbing the events of any further writes. */
+                Thread.sleep(SETTLE_DELAY);
+
+                while ((key = watchService.poll()) != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+
+                try {
+                    onChange.run();
+                } catch (RuntimeException e) {
+                    Flowdam.logger.warn("Failed to apply change to " + file + ": " + e);
+                }
+            }
+        } catch (IOException e) {
+            Flowdam.logger.warn("Unable to watch " + file + ": " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Check if any of the events of a key concern the watched file.
+     *
+     * @param key key with pending events
+     * @return true if the file may have changed
+     */
+    private boolean isChanged(WatchKey key) {
+        boolean changed = false;
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            /* Events lost on overflow may have included the file. */
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+}
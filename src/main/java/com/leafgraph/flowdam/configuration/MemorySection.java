@@ -143,6 +143,11 @@ public class MemorySection implements ConfigurationSection {
      * @return the ConfigurationSection found by the path, or null if it wasn't found/created
      */
     private ConfigurationSection seekPathContaining(String path, boolean create) {
+        // Most paths are a single key, which needs no splitting.
+        if (path.indexOf(PATH_SEPARATOR) < 0) {
+            return this;
+        }
+
         // Separate paths
         String[] pathParts = path.split(PATH_SEPARATOR_REGEX);
 
@@ -182,13 +187,12 @@ public class MemorySection implements ConfigurationSection {
      * @return final key name
      */
     private String getKey(String path) {
-        // Separate paths
-        String[] pathParts = path.split(PATH_SEPARATOR_REGEX);
+        int lastSeparator = path.lastIndexOf(PATH_SEPARATOR);
 
-        if (pathParts.length <= 1) {
+        if (lastSeparator < 0) {
             return path;
         } else {
-            return pathParts[pathParts.length - 1];
+            return path.substring(lastSeparator + 1);
         }
     }
 
@@ -197,7 +201,9 @@ public class MemorySection implements ConfigurationSection {
         ConfigurationSection configurationSection = seekPathContaining(path, false);
         String key = getKey(path);
 
-        if (this == configurationSection) {
+        if (configurationSection == null) {
+            return false;
+        } else if (this == configurationSection) {
             return dataStore.containsKey(key);
         } else {
             return configurationSection.isSet(key);
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.filter;
+
+import com.leafgraph.flowdam.configuration.ConfigurationSection;
+import com.leafgraph.flowdam.openflow.Container;
+import com.leafgraph.flowdam.proxy.ProxiedConnection;
+import com.leafgraph.flowdam.proxy.ProxyChannelType;
+
+/**
+ * DropFilter drops every message matching its rule, optionally logging each one. Messages from a controller are
+ * answered with a BAD_REQUEST EPERM error if the rule sets refuse.
+ */
+public class DropFilter implements MessageFilter {
+    /** Flag to specify if dropped messages are logged. */
+    private boolean log = false;
+
+    @Override
+    public void configure(ConfigurationSection config) {
+        log = config.getBoolean("log", false);
+    }
+
+    @Override
+    public Container filter(ProxiedConnection proxiedConnection, ProxyChannelType channelSource, Container container) {
+        if (log) {
+            proxiedConnection.log(" Filter dropped " + channelSource + " " + container.getMessageType() + " [" + container.getHeader().getTransactionId() + "]");
+        }
+
+        return null;
+    }
+}
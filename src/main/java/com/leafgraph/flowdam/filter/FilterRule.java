@@ -0,0 +1,198 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.filter;
+
+import com.leafgraph.flowdam.openflow.Container;
+import com.leafgraph.flowdam.openflow.Type;
+import com.leafgraph.flowdam.proxy.ProxiedConnection;
+import com.leafgraph.flowdam.proxy.ProxyChannelType;
+import org.projectfloodlight.openflow.protocol.OFFlowMod;
+import org.projectfloodlight.openflow.protocol.OFFlowRemoved;
+import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.projectfloodlight.openflow.protocol.OFPacketIn;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.protocol.match.Match;
+import org.projectfloodlight.openflow.protocol.match.MatchField;
+import org.projectfloodlight.openflow.protocol.match.MatchFields;
+import org.projectfloodlight.openflow.types.OFValueType;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * FilterRule decides which messages a MessageFilter is applied to. A rule may be limited to message types, to the
+ * direction the message is travelling, to particular switches and to messages carrying a match (FLOW_MOD, PACKET_IN
+ * and FLOW_REMOVED) with particular field values. Anything not limited matches everything.
+ *
+ * Match field values are compared as OpenFlowJ prints them, e.g. ETH_TYPE "0x800" or IPV4_DST "10.0.0.1", a masked
+ * field as value/mask.
+ */
+public class FilterRule {
+    /** Message types the rule applies to, empty for every type. */
+    private Set<Type> types;
+    /** Where the message must come from, or null for either direction. */
+    private ProxyChannelType channelSource;
+    /** Datapath IDs of the switches the rule applies to, empty for every switch. */
+    private Set<Long> datapathIds;
+    /** Match field values the message must carry, empty if the match is not inspected. */
+    private Map<MatchFields, String> matchFields = new EnumMap<>(MatchFields.class);
+    /** Filter applied to matching messages. */
+    private MessageFilter filter;
+    /** Flag to specify if the filter is too slow for the event loop and must run on the worker pool. */
+    private boolean offload;
+    /** Flag to specify if messages from a controller dropped by the filter are answered with a BAD_REQUEST EPERM error. */
+    private boolean refuse;
+
+    /**
+     * Construct a new FilterRule.
+     *
+     * @param types message types the rule applies to, empty for every type
+     * @param channelSource where the message must come from, or null for either direction
+     * @param datapathIds datapath IDs of the switches the rule applies to, empty for every switch
+     * @param matchFields match field names (as in MatchFields) and the values the message must carry
+     * @param filter filter applied to matching messages
+     * @param offload true if the filter is too slow for the event loop and must run on the worker pool
+     * @param refuse true if messages from a controller dropped by the filter are answered with an error
+     * @throws IllegalArgumentException if a match field name is not recognised
+     */
+    public FilterRule(Set<Type> types, ProxyChannelType channelSource, Set<Long> datapathIds, Map<String, String> matchFields, MessageFilter filter, boolean offload,
+            boolean refuse) {
+        this.types = types;
+        this.channelSource = channelSource;
+        this.datapathIds = datapathIds;
+        this.filter = filter;
+        this.offload = offload;
+        this.refuse = refuse;
+
+        for (Map.Entry<String, String> entry : matchFields.entrySet()) {
+            this.matchFields.put(MatchFields.valueOf(entry.getKey()), entry.getValue());
+        }
+    }
+
+    /**
+     * Get the message types the rule applies to.
+     *
+     * @return message types, empty for every type
+     */
+    Set<Type> getTypes() {
+        return types;
+    }
+
+    /**
+     * Get the filter applied to matching messages.
+     *
+     * @return filter
+     */
+    MessageFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Check if the filter is too slow for the event loop and must run on the worker pool.
+     *
+     * @return true if the filter is offloaded
+     */
+    boolean isOffload() {
+        return offload;
+    }
+
+    /**
+     * Check if messages from a controller dropped by the filter are answered with a BAD_REQUEST EPERM error, rather
+     * than dropped silently.
+     *
+     * @return true if dropped controller messages are refused
+     */
+    boolean isRefuse() {
+        return refuse;
+    }
+
+    /**
+     * Check if a message of a type the rule applies to matches the rest of the rule. The message is only parsed if
+     * the rule inspects its match.
+     *
+     * @param proxiedConnection the connection the message is passing through
+     * @param channelSource where the message came from
+     * @param container the message
+     * @return true if the filter should be applied
+     */
+    boolean matches(ProxiedConnection proxiedConnection, ProxyChannelType channelSource, Container container) {
+        if (this.channelSource != null && this.channelSource != channelSource) {
+            return false;
+        }
+
+        if (!datapathIds.isEmpty() && !datapathIds.contains(proxiedConnection.getDatapathIdLong())) {
+            return false;
+        }
+
+        if (matchFields.isEmpty()) {
+            return true;
+        }
+
+        Match match = getMatch(container.getPacket());
+
+        if (match == null) {
+            return false;
+        }
+
+        int matched = 0;
+
+        for (MatchField<?> field : match.getMatchFields()) {
+            String expected = matchFields.get(field.id);
+
+            if (expected != null) {
+                if (!expected.equals(valueOf(match, field))) {
+                    return false;
+                }
+
+                matched++;
+            }
+        }
+
+        return matched == matchFields.size();
+    }
+
+    /**
+     * Get the match carried by a message.
+     *
+     * @param message message to inspect
+     * @return the match, or null if the message does not carry one
+     */
+    private static Match getMatch(OFMessage message) {
+        if (message instanceof OFFlowMod) {
+            return ((OFFlowMod) message).getMatch();
+        } else if (message instanceof OFFlowRemoved) {
+            return ((OFFlowRemoved) message).getMatch();
+        } else if (message instanceof OFPacketIn && message.getVersion() != OFVersion.OF_10) {
+            /* OpenFlow 1.0 PACKET_INs carry no match. */
+            return ((OFPacketIn) message).getMatch();
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the value of a match field as a string.
+     *
+     * @param match match holding the field
+     * @param field field to get
+     * @param <F> type of the field's value
+     * @return value, or value/mask for a masked field
+     */
+    private static <F extends OFValueType<F>> String valueOf(Match match, MatchField<F> field) {
+        return match.isPartiallyMasked(field) ? match.getMasked(field).toString() : match.get(field).toString();
+    }
+}
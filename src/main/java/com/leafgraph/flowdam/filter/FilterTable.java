@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.filter;
+
+import com.leafgraph.flowdam.Flowdam;
+import com.leafgraph.flowdam.openflow.Container;
+import com.leafgraph.flowdam.openflow.Type;
+import com.leafgraph.flowdam.proxy.ProxiedConnection;
+import com.leafgraph.flowdam.proxy.ProxyChannelType;
+import io.netty.channel.Channel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FilterTable holds the filter rules of a proxy compiled into a dispatch table indexed by message type, so a message
+ * only meets the rules which could apply to its type. The table is indexed by the Type the message was classified as
+ * for its version, not the raw type number, as OpenFlow 1.0 numbers several types differently. Messages of a type
+ * without rules pass straight through, without being parsed.
+ *
+ * Messages of a type with an offloaded rule must be applied to the table on the worker pool rather than the event loop,
+ * the caller being responsible for keeping them in order with the rest of the connection's messages.
+ */
+public class FilterTable {
+    /** Number of message Types, including OFPT_UNKNOWN. */
+    private static final int TYPE_COUNT = Type.values().length;
+
+    /** Rules by message type, in configured order, or null if there are none for the type. */
+    private FilterRule[][] rulesByType = new FilterRule[TYPE_COUNT][];
+    /** Flags by message type to specify if any of the type's rules is offloaded. */
+    private boolean[] offloadByType = new boolean[TYPE_COUNT];
+
+    /**
+     * Compile rules into a new FilterTable.
+     *
+     * @param rules rules in the order they are applied
+     */
+    public FilterTable(List<FilterRule> rules) {
+        for (Type type : Type.values()) {
+            List<FilterRule> applicable = new ArrayList<>();
+
+            for (FilterRule rule : rules) {
+                if (rule.getTypes().isEmpty() || rule.getTypes().contains(type)) {
+                    applicable.add(rule);
+                    offloadByType[type.ordinal()] |= rule.isOffload();
+                }
+            }
+
+            if (!applicable.isEmpty()) {
+                rulesByType[type.ordinal()] = applicable.toArray(new FilterRule[applicable.size()]);
+            }
+        }
+    }
+
+    /**
+     * Check if a message must be applied to the table on the worker pool.
+     *
+     * @param container the message
+     * @return true if any rule for the message's type is offloaded
+     */
+    public boolean isOffloaded(Container container) {
+        return offloadByType[container.getMessageType().ordinal()];
+    }
+
+    /**
+     * Check if any rule is offloaded.
+     *
+     * @return true if the worker pool is needed
+     */
+    public boolean hasOffloadedRules() {
+        for (boolean offload : offloadByType) {
+            if (offload) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Apply the rules to a message, each matching rule's filter receiving the result of the last.
+     *
+     * @param proxiedConnection the connection the message is passing through
+     * @param incoming channel the message arrived on
+     * @param channelSource where the message came from
+     * @param container the message
+     * @return the message to pass on, or null if it was dropped and released, as it is if a filter throws
+     */
+    public Container apply(ProxiedConnection proxiedConnection, Channel incoming, ProxyChannelType channelSource, Container container) {
+        FilterRule[] rules = rulesByType[container.getMessageType().ordinal()];
+
+        if (rules == null) {
+            return container;
+        }
+
+        for (FilterRule rule : rules) {
+            Container filtered;
+
+            try {
+                if (!rule.matches(proxiedConnection, channelSource, container)) {
+                    continue;
+                }
+
+                filtered = rule.getFilter().filter(proxiedConnection, channelSource, container);
+            } catch (RuntimeException e) {
+                /* There is no policy decision to act upon, so the message is dropped rather than passed on. */
+                Flowdam.logger.warn("Filter " + rule.getFilter().getClass().getName() + " failed: " + e);
+                filtered = null;
+            }
+
+            if (filtered == null && channelSource == ProxyChannelType.SWITCH) {
+                /* A dropped reply never reaches its requester, so the request it answers is finished with. */
+                proxiedConnection.replyDropped(container);
+            } else if (filtered == null && rule.isRefuse()) {
+                /* Tell the controller its request was refused by policy, rather than leave it waiting. */
+                proxiedConnection.refuse(incoming, container);
+            }
+
+            /* The message has been dropped or replaced, so goes back to the pool unless the filter retained it. */
+            if (filtered != container) {
+                container.release();
+            }
+
+            if (filtered == null) {
+                return null;
+            }
+
+            container = filtered;
+        }
+
+        return container;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.filter;
+
+import com.leafgraph.flowdam.configuration.ConfigurationSection;
+import com.leafgraph.flowdam.openflow.Container;
+import com.leafgraph.flowdam.proxy.ProxiedConnection;
+import com.leafgraph.flowdam.proxy.ProxyChannelType;
+
+/**
+ * MessageFilter is implemented by plugins which enforce policy on the messages passing through a proxy. Filters are
+ * named in the proxy's configuration and constructed by their no argument constructor, then only called for messages
+ * matching the rule they were configured with.
+ *
+ * Filters are called on the Netty event loop of the channel the message arrived on, so must not block, unless their
+ * rule is configured to offload them to the proxy's worker pool. Offloaded filters may be called concurrently, for
+ * different connections and for consecutive messages of the same connection, although the messages are still passed
+ * on in the order they arrived. The object representation of the message is only parsed if the filter asks for it.
+ *
+ * Messages are pooled, a filter must not keep a message or its raw data after returning unless it has called retain()
+ * on it (or taken a copy()), and must release() anything it retained once finished with it. A filter returning a
+ * replacement, or null, has the message it was given released for it.
+ */
+public interface MessageFilter {
+    /**
+     * Configure the filter from the configuration section of the rule it belongs to.
+     *
+     * @param config configuration section of the rule
+     */
+    void configure(ConfigurationSection config);
+
+    /**
+     * Filter a message matching the rule.
+     *
+     * @param proxiedConnection the connection the message is passing through
+     * @param channelSource where the message came from
+     * @param container the message
+     * @return the message to pass on, which may be a rewritten replacement, or null to drop the message
+     */
+    Container filter(ProxiedConnection proxiedConnection, ProxyChannelType channelSource, Container container);
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.netty;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * BalancedEventLoopGroup is a NioEventLoopGroup which lets the proxy choose the event loop each new channel is
+ * registered with, rather than Netty's round robin, so that busy switches can be spread across cores.
+ */
+public class BalancedEventLoopGroup extends NioEventLoopGroup {
+    /** Event loops of the group, in a fixed order. */
+    private List<EventLoop> eventLoops;
+    /** Chooser of the event loop for a new channel, or null for round robin. */
+    private volatile Supplier<EventLoop> chooser;
+
+    /**
+     * Construct a new BalancedEventLoopGroup with Netty's default number of event loops.
+     */
+    public BalancedEventLoopGroup() {
+        List<EventLoop> loops = new ArrayList<>();
+
+        for (EventExecutor executor : children()) {
+            loops.add((EventLoop) executor);
+        }
+
+        eventLoops = Collections.unmodifiableList(loops);
+    }
+
+    /**
+     * Get the event loops of the group.
+     *
+     * @return event loops, in a fixed order
+     */
+    public List<EventLoop> getEventLoops() {
+        return eventLoops;
+    }
+
+    /**
+     * Set the chooser of the event loop for a new channel.
+     *
+     * @param chooser chooser of the event loop, or null for round robin
+     */
+    public void setChooser(Supplier<EventLoop> chooser) {
+        this.chooser = chooser;
+    }
+
+    @Override
+    public EventLoop next() {
+        Supplier<EventLoop> current = chooser;
+        return current != null ? current.get() : super.next();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.netty;
+
+import com.leafgraph.flowdam.filter.FilterTable;
+import com.leafgraph.flowdam.openflow.Container;
+import com.leafgraph.flowdam.proxy.ProxiedConnection;
+import com.leafgraph.flowdam.proxy.ProxyChannelType;
+import io.netty.channel.Channel;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * FilterSequencer keeps the messages of one channel in order while some of them are filtered on the worker pool. Every
+ * message arriving while an offloaded message is outstanding queues behind it, messages are released to the proxy
+ * strictly in arrival order once filtered.
+ *
+ * The sequencer is only used from the channel's event loop, workers hand their results back to it. Reading from the
+ * channel stops while too many messages are queued, and resumes once half have been released.
+ */
+class FilterSequencer {
+    /** Channel the messages arrive on. */
+    private Channel channel;
+    /** Connection the messages are released to. */
+    private ProxiedConnection proxiedConnection;
+    /** Where the messages come from. */
+    private ProxyChannelType channelSource;
+    /** Filter rules to apply. */
+    private FilterTable filterTable;
+    /** Workers running offloaded filters. */
+    private Executor executor;
+    /** Maximum number of queued messages before reading from the channel stops. */
+    private int maximumPending;
+
+    /** Messages in arrival order, filtered or not. */
+    private ArrayDeque<Entry> pending = new ArrayDeque<>();
+
+    /**
+     * Construct a new FilterSequencer for a channel.
+     *
+     * @param channel channel the messages arrive on
+     * @param proxiedConnection connection the messages are released to
+     * @param filterTable filter rules to apply
+     * @param executor workers running offloaded filters
+     * @param maximumPending maximum number of queued messages before reading from the channel stops
+     */
+    FilterSequencer(Channel channel, ProxiedConnection proxiedConnection, FilterTable filterTable, Executor executor, int maximumPending) {
+        this.channel = channel;
+        this.proxiedConnection = proxiedConnection;
+        this.channelSource = proxiedConnection.getProxyChannelType(channel);
+        this.filterTable = filterTable;
+        this.executor = executor;
+        this.maximumPending = Math.max(1, maximumPending);
+    }
+
+    /**
+     * Check if no messages are queued, in which case a message which is not offloaded need not be sequenced.
+     *
+     * @return true if nothing is queued
+     */
+    boolean isIdle() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Filter a message and release it in order, offloading the filters to the worker pool if required.
+     *
+     * @param container the message
+     */
+    void submit(Container container) {
+        final Entry entry = new Entry();
+        pending.add(entry);
+
+        if (pending.size() >= maximumPending) {
+            channel.config().setAutoRead(false);
+        }
+
+        if (!filterTable.isOffloaded(container)) {
+            /* Cheap enough to filter now, it only waits for those ahead of it. */
+            entry.complete(filterTable.apply(proxiedConnection, channel, channelSource, container));
+            release();
+            return;
+        }
+
+        /* Filters which throw have dropped the message, so the entry always completes and the queue moves on. */
+        executor.execute(() -> complete(entry, filterTable.apply(proxiedConnection, channel, channelSource, container)));
+    }
+
+    /**
+     * Hand the result of an offloaded filter back to the channel's event loop, following the channel if it has been
+     * migrated to another event loop in the meantime.
+     *
+     * @param entry the waiting message
+     * @param result message to release, or null if dropped
+     */
+    private void complete(Entry entry, Container result) {
+        channel.eventLoop().execute(() -> {
+            if (!channel.eventLoop().inEventLoop()) {
+                complete(entry, result);
+                return;
+            }
+
+            entry.complete(result);
+            release();
+        });
+    }
+
+    /**
+     * Release filtered messages from the head of the queue to the proxy.
+     */
+    private void release() {
+        Entry head;
+
+        while ((head = pending.peek()) != null && head.done) {
+            pending.poll();
+
+            if (head.result != null) {
+                proxiedConnection.receive(channel, head.result);
+            }
+        }
+
+        if (pending.size() <= maximumPending / 2 && !channel.config().isAutoRead()) {
+            channel.config().setAutoRead(true);
+        }
+    }
+
+    /**
+     * A message waiting to be released.
+     */
+    private static class Entry {
+        /** Flag to specify if filtering has finished. */
+        private boolean done = false;
+        /** Message to release, or null if dropped. */
+        private Container result;
+
+        void complete(Container result) {
+            this.result = result;
+            this.done = true;
+        }
+    }
+}
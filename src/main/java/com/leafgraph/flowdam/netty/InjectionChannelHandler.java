@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.netty;
+
+import com.leafgraph.flowdam.Flowdam;
+import com.leafgraph.flowdam.openflow.Container;
+import com.leafgraph.flowdam.proxy.Injector;
+import com.leafgraph.flowdam.proxy.ProxiedConnection;
+import com.leafgraph.flowdam.proxy.Proxy;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * InjectionChannelHandler is the end of the Netty pipeline for injector connections, passing each message on to the
+ * switch it is addressed to. Messages read together are flushed to each switch once the read is complete, so a batch
+ * costs one flush per switch rather than one per message.
+ */
+class InjectionChannelHandler extends SimpleChannelInboundHandler<ByteBuf> {
+    /** Proxy this Handler injects messages through. */
+    private Proxy proxy;
+    /** Injector representing this connection. */
+    private Injector injector;
+    /** Switch channels written to since the last flush. */
+    private Set<Channel> unflushed = new LinkedHashSet<>();
+
+    /**
+     * Constructs a new Handler ready to serve the Channel.
+     *
+     * @param proxy the proxy which is responsible for this channel
+     */
+    public InjectionChannelHandler(Proxy proxy) {
+        this.proxy = proxy;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        super.channelActive(ctx);
+
+        injector = proxy.registerInjector(ctx.channel());
+        Flowdam.logger.info("Injector connected: " + ctx.channel().remoteAddress());
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) throws Exception {
+        long datapathId = frame.readLong();
+        Container container = OpenFlowDecoder.decode(frame);
+
+        ProxiedConnection proxiedConnection = proxy.getProxiedConnection(datapathId);
+        Channel written = (proxiedConnection != null ? proxiedConnection.inject(injector, container) : null);
+
+        if (written != null) {
+            unflushed.add(written);
+        } else {
+            injector.refuse(datapathId, container);
+            container.release();
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        for (Channel channel : unflushed) {
+            channel.flush();
+        }
+
+        unflushed.clear();
+
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        super.channelInactive(ctx);
+
+        proxy.unregisterInjector(injector);
+        Flowdam.logger.info("Injector disconnected: " + ctx.channel().remoteAddress());
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        /* A malformed message leaves the framing in doubt, so drop the injector. */
+        Flowdam.logger.warn("Injector error: " + cause);
+        ctx.close();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.netty;
+
+import com.leafgraph.flowdam.proxy.Proxy;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+/**
+ * InjectionChannelInitializer sets up Netty connections from injectors, local clients which submit OpenFlow messages
+ * to switches. Each message is framed by the 8 byte datapath ID of the switch it is for, followed by the OpenFlow
+ * message itself.
+ */
+public class InjectionChannelInitializer extends ChannelInitializer<SocketChannel> {
+    /** Length of the datapath ID preceding each OpenFlow message. */
+    static final int DATAPATH_ID_LENGTH = 8;
+
+    /** Proxy to handle new connections initialized by this. */
+    private Proxy proxy;
+
+    /**
+     * Constructs a new ChannelInitializer ready for initializing channels.
+     *
+     * @param proxy the proxy object that new channels belong to
+     */
+    public InjectionChannelInitializer(Proxy proxy) {
+        this.proxy = proxy;
+    }
+
+    @Override
+    protected void initChannel(SocketChannel socketChannel) throws Exception {
+        ChannelPipeline pipeline = socketChannel.pipeline();
+
+        /* The OpenFlow length field follows the datapath ID, and counts only the OpenFlow message. */
+        pipeline.addLast("lengthDecoder", new LengthFieldBasedFrameDecoder(DATAPATH_ID_LENGTH + OpenFlowChannelInitializer.OPENFLOW_MAXIMUM_FRAME, DATAPATH_ID_LENGTH + 2, 2, -4, 0));
+
+        /* Injection Processor. */
+        pipeline.addLast("injectionHandler", new InjectionChannelHandler(proxy));
+    }
+}
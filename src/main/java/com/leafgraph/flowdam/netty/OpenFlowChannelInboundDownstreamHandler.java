@@ -15,7 +15,6 @@
  */
 package com.leafgraph.flowdam.netty;
 
-import com.leafgraph.flowdam.openflow.Container;
 import com.leafgraph.flowdam.proxy.ProxiedConnection;
 import com.leafgraph.flowdam.proxy.Proxy;
 import io.netty.channel.ChannelHandlerContext;
@@ -42,16 +41,7 @@ class OpenFlowChannelInboundDownstreamHandler extends OpenFlowChannelInboundHand
         /* As the upstream Channel registered this new downstream in the proxy already, it must now be marked as
          * active to allow release of queued Containers. */
         ProxiedConnection proxiedConnection = proxy.getProxiedConnection(ctx.channel());
-        proxiedConnection.activeDownstream();
-    }
-
-    @Override
-    protected void channelRead0(ChannelHandlerContext ctx, Container container) throws Exception {
-        ProxiedConnection proxiedConnection = proxy.getProxiedConnection(ctx.channel());
-
-        // do anything to OpenFlow messages here!
-
-        super.channelRead0(ctx, container);
+        proxiedConnection.activeDownstream(ctx.channel());
     }
 
     @Override
@@ -15,22 +15,33 @@
  */
 package com.leafgraph.flowdam.netty;
 
+import com.leafgraph.flowdam.Flowdam;
+import com.leafgraph.flowdam.filter.FilterTable;
 import com.leafgraph.flowdam.proxy.ProxiedConnection;
 import com.leafgraph.flowdam.proxy.Proxy;
 import com.leafgraph.flowdam.proxy.ProxyChannelType;
+import com.leafgraph.flowdam.proxy.ProxySettings;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
 import com.leafgraph.flowdam.openflow.Container;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * OpenFlowChannelInboundHandler looks after idle timeouts and other common functionality between an upstream and
  * downstream connection.
  */
-abstract class OpenFlowChannelInboundHandler extends SimpleChannelInboundHandler<Container> {
+abstract class OpenFlowChannelInboundHandler extends SimpleChannelInboundHandler<List<Container>> {
     /** Proxy this Handler uses for routing packets. */
     Proxy proxy;
+    /** Sequencer keeping messages in order around offloaded filters, or null if none have been needed. */
+    private FilterSequencer sequencer;
+    /** Containers of the current batch which have passed the filters, reused for each batch. */
+    private List<Container> accepted = new ArrayList<>();
 
     /**
      * Base constructor for an Inbound handler.
@@ -38,6 +49,8 @@ abstract class OpenFlowChannelInboundHandler extends SimpleChannelInboundHandler
      * @param proxy the proxy which is responsible for this channel
      */
     public OpenFlowChannelInboundHandler(Proxy proxy) {
+        /* Containers are passed on to the proxy along with their reference, which is released once they are written. */
+        super(false);
         this.proxy = proxy;
     }
 
@@ -45,12 +58,24 @@ abstract class OpenFlowChannelInboundHandler extends SimpleChannelInboundHandler
     public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
         super.userEventTriggered(ctx, evt);
 
+        /* The TLS handler closes the channel if its handshake fails, record why. */
+        if (evt instanceof SslHandshakeCompletionEvent && !((SslHandshakeCompletionEvent) evt).isSuccess()) {
+            ProxiedConnection proxiedConnection = proxy.getProxiedConnection(ctx.channel());
+            String reason = " TLS handshake failed with " + ctx.channel().remoteAddress() + ": " + ((SslHandshakeCompletionEvent) evt).cause();
+
+            if (proxiedConnection != null) {
+                proxiedConnection.log(reason);
+            } else {
+                Flowdam.logger.debug(reason);
+            }
+        }
+
         /* In case the connection becomes idle we must attempt to verify it is still alive. */
         if (evt instanceof IdleStateEvent) {
             ProxiedConnection proxiedConnection = proxy.getProxiedConnection(ctx.channel());
 
             /* Skip echos unless we're fully connected. */
-            if (proxiedConnection.getDownstreamVersion() != null && proxiedConnection.getUpstreamVersion() != null) {
+            if (proxiedConnection.getDownstreamVersion(ctx.channel()) != null && proxiedConnection.getUpstreamVersion() != null) {
                 IdleStateEvent e = (IdleStateEvent) evt;
                 if (e.state() == IdleState.READER_IDLE) {
                     /* No packets have been received in a reasonable time period and as such should now be closed. */
@@ -65,9 +90,53 @@ abstract class OpenFlowChannelInboundHandler extends SimpleChannelInboundHandler
     }
 
     @Override
-    protected void channelRead0(ChannelHandlerContext channelHandlerContext, Container container) throws Exception {
-        /* Send the Container via the proxy onwards. */
+    protected void channelRead0(ChannelHandlerContext channelHandlerContext, List<Container> batch) throws Exception {
         ProxiedConnection proxiedConnection = proxy.getProxiedConnection(channelHandlerContext.channel());
-        proxiedConnection.receive(channelHandlerContext.channel(), container);
+        ProxySettings settings = proxy.getSettings();
+        FilterTable filterTable = settings.getFilterTable();
+
+        if (filterTable == null) {
+            /* Send the batch via the proxy onwards. */
+            proxiedConnection.receive(channelHandlerContext.channel(), batch);
+            return;
+        }
+
+        ProxyChannelType channelSource = proxiedConnection.getProxyChannelType(channelHandlerContext.channel());
+
+        for (Container container : batch) {
+            /* Slow filters run on the worker pool, and anything behind them must wait to keep the order. */
+            if (filterTable.isOffloaded(container) || (sequencer != null && !sequencer.isIdle())) {
+                if (sequencer == null) {
+                    sequencer = new FilterSequencer(channelHandlerContext.channel(), proxiedConnection, filterTable, proxy.getFilterExecutor(), settings.getMaximumPendingFilters());
+                }
+
+                /* Whatever passed ahead of it must reach the proxy first. */
+                receiveAccepted(channelHandlerContext, proxiedConnection);
+                sequencer.submit(container);
+                continue;
+            }
+
+            /* Apply policy, filters may rewrite or drop the Container before the proxy sees it. */
+            container = filterTable.apply(proxiedConnection, channelHandlerContext.channel(), channelSource, container);
+
+            if (container != null) {
+                accepted.add(container);
+            }
+        }
+
+        receiveAccepted(channelHandlerContext, proxiedConnection);
+    }
+
+    /**
+     * Send the Containers of the batch which have passed the filters via the proxy onwards.
+     *
+     * @param channelHandlerContext context of the channel the batch was read from
+     * @param proxiedConnection connection the channel belongs to
+     */
+    private void receiveAccepted(ChannelHandlerContext channelHandlerContext, ProxiedConnection proxiedConnection) {
+        if (!accepted.isEmpty()) {
+            proxiedConnection.receive(channelHandlerContext.channel(), accepted);
+            accepted.clear();
+        }
     }
 }
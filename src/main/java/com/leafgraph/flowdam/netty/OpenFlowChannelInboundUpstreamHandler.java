@@ -15,18 +15,14 @@
  */
 package com.leafgraph.flowdam.netty;
 
-import com.leafgraph.flowdam.Flowdam;
-import com.leafgraph.flowdam.openflow.Container;
 import com.leafgraph.flowdam.proxy.ProxiedConnection;
 import com.leafgraph.flowdam.proxy.Proxy;
-import io.netty.channel.Channel;
-import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 
 /**
  * OpenFlowChannelInboundUpstreamHandler is the end of the Netty pipeline for incoming connections from switches
- * wishing to participate in OpenFlow. Once the channel is active it attempts to create the onwards channel to the
- * controller.
+ * wishing to participate in OpenFlow. Once the channel is active and the proxy admits it, it attempts to create the
+ * onwards channels to the controllers.
  */
 class OpenFlowChannelInboundUpstreamHandler extends OpenFlowChannelInboundHandler {
     /**
@@ -42,37 +38,11 @@ class OpenFlowChannelInboundUpstreamHandler extends OpenFlowChannelInboundHandle
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
         super.channelActive(ctx);
 
-        /* Register self in the proxy. */
-        final Channel upstreamChannel = ctx.channel();
-        proxy.registerUpstream(upstreamChannel);
-
-        /* Attempt connect. */
-        ChannelFuture future = proxy.getClientBootstrap().connect(proxy.getConnectTo());
-
-        final Channel downstreamChannel = future.channel();
-        proxy.registerDownstream(downstreamChannel, upstreamChannel);
-
-        future.awaitUninterruptibly();
-        /* Add callback to handle connection failure, closing the upstream channel should the downstream fail. */
-        future.addListener(channelFuture -> {
-            if (!channelFuture.isSuccess()) {
-                Flowdam.logger.info("downstream create failed.");
-                channelFuture.cause().printStackTrace();
-                upstreamChannel.close();
-            }
-        });
+        /* Register self in the proxy, then attempt connect to every controller once admitted. */
+        ProxiedConnection proxiedConnection = proxy.registerUpstream(ctx.channel());
+        proxy.admit(proxiedConnection, ctx.channel());
     }
 
-    @Override
-    protected void channelRead0(ChannelHandlerContext channelHandlerContext, Container container) throws Exception {
-        ProxiedConnection proxiedConnection = proxy.getProxiedConnection(channelHandlerContext.channel());
-
-        // do anything to OpenFlow messages here!
-
-        super.channelRead0(channelHandlerContext, container);
-    }
-
-
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         super.channelInactive(ctx);
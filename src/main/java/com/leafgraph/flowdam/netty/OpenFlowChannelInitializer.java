@@ -19,7 +19,8 @@ import com.leafgraph.flowdam.proxy.Proxy;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.timeout.IdleStateHandler;
 
 import java.util.concurrent.TimeUnit;
@@ -53,10 +54,18 @@ public class OpenFlowChannelInitializer extends ChannelInitializer<SocketChannel
     protected void initChannel(SocketChannel socketChannel) throws Exception {
         ChannelPipeline pipeline = socketChannel.pipeline();
 
-        /* Use Netty's prebuilt tools to handle frame separation on incoming data. */
-        pipeline.addLast("lengthDecoder", new LengthFieldBasedFrameDecoder(OPENFLOW_MAXIMUM_FRAME, 2, 2, -4, 0));
+        /* TLS from switches, if configured. Controller channels are given theirs once the address is chosen. */
+        SslContext switchSslContext = proxy.getSettings().getSwitchSslContext();
 
-        /* Process OpenFlow packets. */
+        if (!downstream && switchSslContext != null) {
+            SslHandler tls = switchSslContext.newHandler(socketChannel.alloc());
+
+            /* Switches may wait for admission with reading paused, the handshake is timed from admission instead. */
+            tls.setHandshakeTimeoutMillis(0);
+            pipeline.addLast("tls", tls);
+        }
+
+        /* Process OpenFlow packets, the decoder separates frames itself as the header gives their length. */
         pipeline.addLast("openflowDecoder", new OpenFlowDecoder());
         pipeline.addLast("openflowEncoder", new OpenFlowEncoder());
 
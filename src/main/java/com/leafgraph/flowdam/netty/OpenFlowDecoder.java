@@ -15,60 +15,86 @@
  */
 package com.leafgraph.flowdam.netty;
 
-import com.leafgraph.flowdam.openflow.Header;
+import com.leafgraph.flowdam.Flowdam;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToMessageDecoder;
-import org.projectfloodlight.openflow.protocol.OFFactories;
-import org.projectfloodlight.openflow.protocol.OFMessage;
+import io.netty.handler.codec.ByteToMessageDecoder;
 import com.leafgraph.flowdam.openflow.Container;
-import com.leafgraph.flowdam.openflow.Type;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
- * OpenFlowDecode is responsible for the first pass of decoding incoming OpenFlow packets and separating them into
- * the header and raw data. The pipeline will have already split up incoming data into individual packets.
+ * OpenFlowDecoder separates incoming data into OpenFlow packets and decodes each into its header and raw data. Every
+ * complete packet in the buffer is decoded in a single pass, and passed on as one batch, with anything left over kept
+ * until more data arrives.
+ *
+ * The batch is a list of Containers which is reused for the next read, so the handler receiving it must not keep it,
+ * only the Containers within it.
+ *
+ * Data arriving while a packet is incomplete is appended by composing buffers rather than copying them, each packet
+ * is then copied once, straight out of the buffer into its Container.
+ *
+ * A header giving a length shorter than itself loses the framing for good, so the channel is closed.
  */
-class OpenFlowDecoder extends MessageToMessageDecoder<ByteBuf> {
-    @Override
-    protected void decode(ChannelHandlerContext channelHandlerContext, ByteBuf byteBuf, List<Object> objects) throws Exception {
-        /* Sanity check. */
-        if (byteBuf.readableBytes() < 8) {
-            throw new IllegalStateException();
-        }
+class OpenFlowDecoder extends ByteToMessageDecoder {
+    /** Length of the OpenFlow header. */
+    private static final int HEADER_LENGTH = 8;
 
-        /* Read OpenFlow Header. */
-        short version = byteBuf.readUnsignedByte();
-        short typeId = byteBuf.readUnsignedByte();
-        int length = byteBuf.readUnsignedShort();
-        long transactionId = byteBuf.readUnsignedInt();
+    /** Containers decoded from the current read, passed on together. */
+    private List<Container> batch = new ArrayList<>();
 
-        /* Sanity check that we have enough data. */
-        if (byteBuf.readableBytes() < (length - 8)) {
-            throw new IllegalStateException();
-        }
+    /**
+     * Construct a new OpenFlowDecoder for a channel.
+     */
+    OpenFlowDecoder() {
+        setCumulator(COMPOSITE_CUMULATOR);
+    }
 
-        /* Copy the data portion of the OpenFlow packet and store it. */
-        byteBuf.resetReaderIndex();
-//        byte[] originalData = byteBuf.readBytes(length).array();
-        byte[] originalData = new byte[byteBuf.readableBytes()];
-        byteBuf.getBytes(byteBuf.readerIndex(), originalData);
+    @Override
+    protected void decode(ChannelHandlerContext channelHandlerContext, ByteBuf byteBuf, List<Object> objects) throws Exception {
+        /* The last batch has been passed down the pipeline and handled by now. */
+        batch.clear();
 
-        /* Construct the OpenFlow header and container for both it and data. */
-        Header header = new Header(version, typeId, length, transactionId);
-        Type type = Type.getById(typeId);
+        while (byteBuf.readableBytes() >= HEADER_LENGTH) {
+            int length = byteBuf.getUnsignedShort(byteBuf.readerIndex() + 2);
 
-        /* Get full openflow packet for processing with openflowj */
-        byteBuf.resetReaderIndex();
+            /* A length shorter than the header can never be framed, so there is no way to find the next packet. What came
+             * before is passed on, then the channel is closed rather than reading on from an arbitrary offset. */
+            if (length < HEADER_LENGTH) {
+                Flowdam.logger.warn("OpenFlow packet length " + length + " from " + channelHandlerContext.channel().remoteAddress()
+                        + " is shorter than its header, closing the connection");
+                byteBuf.skipBytes(byteBuf.readableBytes());
+                channelHandlerContext.close();
+                break;
+            }
 
-        /* Call openflowj using generic reader object. */
-        OFMessage message = OFFactories.getGenericReader().readFrom(byteBuf);
+            if (byteBuf.readableBytes() < length) {
+                break;
+            }
 
-        /* Container object for header, raw data and openflowj message. */
-        Container container = new Container(header, originalData, type, message);
+            batch.add(Container.readFrom(byteBuf, length));
+        }
 
         /* Add to the Netty pipeline. */
-        objects.add(container);
+        if (!batch.isEmpty()) {
+            objects.add(batch);
+        }
+    }
+
+    /**
+     * Decode a single OpenFlow message, which must begin at the reader index and fill the rest of the buffer.
+     *
+     * @param byteBuf buffer holding the OpenFlow message
+     * @return Container for the message
+     */
+    static Container decode(ByteBuf byteBuf) {
+        /* Sanity check that we have the header, and enough data for the length it gives. */
+        if (byteBuf.readableBytes() < HEADER_LENGTH || byteBuf.readableBytes() < byteBuf.getUnsignedShort(byteBuf.readerIndex() + 2)) {
+            throw new IllegalStateException();
+        }
+
+        /* Copy the whole frame into a pooled Container, openflowj is only called if the message must be inspected. */
+        return Container.readFrom(byteBuf, byteBuf.readableBytes());
     }
 }
@@ -29,10 +29,10 @@ class OpenFlowEncoder extends MessageToMessageEncoder<Container> {
     @Override
     protected void encode(ChannelHandlerContext channelHandlerContext, Container container, List<Object> objects) throws Exception {
         /* Construct a ByteBuf with the expected size of the output OpenFlow packet. */
-        ByteBuf output = channelHandlerContext.alloc().buffer(container.getHeader().getLength());
+        ByteBuf output = channelHandlerContext.alloc().buffer(container.getLength());
 
-        /* Write the binary data blob. */
-        output.writeBytes(container.getData());
+        /* Write the binary data blob, the Container is released back to its pool once this returns. */
+        container.writeTo(output);
 
         /* Add back to the Netty pipeline. */
         objects.add(output);
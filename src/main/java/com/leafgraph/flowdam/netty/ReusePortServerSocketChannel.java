@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.netty;
+
+import io.netty.channel.ChannelException;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+
+/**
+ * ReusePortServerSocketChannel is a listening channel with SO_REUSEPORT set, so that a second Flowdam process can
+ * listen on the same port while the first drains, and no switch is refused while one replaces the other.
+ *
+ * The JDK provides SO_REUSEPORT from Java 9, it is found reflectively so that Flowdam still runs on Java 8 without it.
+ */
+public class ReusePortServerSocketChannel extends NioServerSocketChannel {
+    /** SO_REUSEPORT socket option, or null if the JDK does not provide it. */
+    private static final SocketOption<Boolean> SO_REUSEPORT = findReusePort();
+
+    /**
+     * Create a new listening channel with SO_REUSEPORT set.
+     *
+     * @throws ChannelException if SO_REUSEPORT is not supported
+     */
+    public ReusePortServerSocketChannel() {
+        if (SO_REUSEPORT == null) {
+            throw new ChannelException("SO_REUSEPORT requires Java 9 or later");
+        }
+
+        try {
+            javaChannel().setOption(SO_REUSEPORT, true);
+        } catch (IOException | UnsupportedOperationException e) {
+            throw new ChannelException("Unable to set SO_REUSEPORT", e);
+        }
+    }
+
+    /**
+     * Check if the JDK provides SO_REUSEPORT.
+     *
+     * @return true if listening channels may share a port
+     */
+    public static boolean isSupported() {
+        return SO_REUSEPORT != null;
+    }
+
+    /**
+     * Find the SO_REUSEPORT socket option.
+     *
+     * @return SO_REUSEPORT, or null if the JDK does not provide it
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findReusePort() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import com.leafgraph.flowdam.openflow.Container;
+import org.projectfloodlight.openflow.protocol.OFFactories;
+import org.projectfloodlight.openflow.protocol.OFFactory;
+import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.projectfloodlight.openflow.protocol.OFPacketInReason;
+import org.projectfloodlight.openflow.protocol.OFPortReason;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Warmup exercises the path every message takes through the proxy before any switch has connected, so that the first
+ * switches after a restart are not held up by class loading, openflowj creating its factories and code which has not
+ * yet been compiled.
+ *
+ * Synthetic messages of the commonest types, in every OpenFlow version, are passed through the same decoder and
+ * encoder as real channels use, with each message parsed on the way.
+ */
+public class Warmup {
+    /**
+     * Warmup only has static methods.
+     */
+    private Warmup() {
+    }
+
+    /**
+     * Pass the synthetic messages through the decoder and encoder repeatedly.
+     *
+     * @param iterations number of times to pass every message through, or zero to only load the factories
+     * @return number of messages passed through
+     */
+    public static long run(int iterations) {
+        ByteBuf frames = Unpooled.buffer();
+
+        for (OFVersion version : OFVersion.values()) {
+            for (OFMessage message : createMessages(OFFactories.getFactory(version))) {
+                message.writeTo(frames);
+            }
+        }
+
+        EmbeddedChannel channel = new EmbeddedChannel(new OpenFlowDecoder(), new OpenFlowEncoder());
+        long messages = 0;
+
+        try {
+            for (int i = 0; i < iterations; i++) {
+                channel.writeInbound(frames.duplicate().retain());
+
+                /* The decoder reuses its batch, so each must be finished with before the next write. */
+                Object batch;
+
+                while ((batch = channel.readInbound()) != null) {
+                    for (Object message : (List<?>) batch) {
+                        Container container = (Container) message;
+                        container.getMessageType();
+                        container.getPacket();
+                        channel.write(container);
+                        messages++;
+                    }
+                }
+
+                channel.flush();
+
+                Object encoded;
+
+                while ((encoded = channel.readOutbound()) != null) {
+                    ((ByteBuf) encoded).release();
+                }
+            }
+        } finally {
+            channel.finish();
+            frames.release();
+        }
+
+        return messages;
+    }
+
+    /**
+     * Create one of each of the commonest messages.
+     *
+     * @param factory factory for the OpenFlow version to create messages in
+     * @return synthetic messages
+     */
+    private static List<OFMessage> createMessages(OFFactory factory) {
+        return Arrays.asList(
+                factory.buildHello().setXid(1).build(),
+                factory.buildEchoRequest().setXid(2).build(),
+                factory.buildFeaturesRequest().setXid(3).build(),
+                factory.buildFeaturesReply().setXid(3).build(),
+                factory.buildPacketIn().setXid(4).setReason(OFPacketInReason.NO_MATCH).setData(new byte[64]).build(),
+                factory.buildPacketOut().setXid(5).setData(new byte[64]).build(),
+                factory.buildFlowAdd().setXid(6).build(),
+                factory.buildFlowDelete().setXid(7).build(),
+                factory.buildPortStatus().setXid(8).setReason(OFPortReason.MODIFY).setDesc(factory.buildPortDesc().build()).build(),
+                factory.buildFlowStatsRequest().setXid(9).build(),
+                factory.buildBarrierRequest().setXid(10).build());
+    }
+}
@@ -15,35 +15,140 @@
  */
 package com.leafgraph.flowdam.openflow;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.Recycler;
+import org.projectfloodlight.openflow.exceptions.OFParseError;
+import org.projectfloodlight.openflow.protocol.OFFactories;
 import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+
+import java.util.Arrays;
 
 /**
- * Container object encapsulates an OpenFlow header, the raw data and any objects created from the raw data.
+ * Container object encapsulates an OpenFlow header, the raw data and any objects created from the raw data. The
+ * object representation is only created when first asked for, most messages are relayed without ever needing it.
+ *
+ * Containers read from the wire are pooled, along with their header and data array, and are reference counted in the
+ * same way as Netty's buffers. Whoever holds a container owns one reference to it: writing it to a channel hands that
+ * reference to the channel, which releases it once encoded, and anyone dropping a container should release it. Anyone
+ * keeping a container beyond the call it was passed to, such as a filter holding it back, must retain() it first, or
+ * keep a copy(). The header and data of a container must not be used once it has been released, as they will be
+ * reused for another message. A container which is never released is simply garbage collected, losing only its reuse.
  */
-public class Container {
+public class Container extends AbstractReferenceCounted {
+    /** OpenFlow versions by wire version. */
+    private static final OFVersion[] versions = new OFVersion[OFVersion.OF_15.getWireVersion() + 1];
+    /** Maximum number of containers pooled by each thread. */
+    private static final int MAXIMUM_POOLED = 4096;
+    /** Largest data array kept with a pooled container, larger messages have theirs discarded when recycled. */
+    private static final int MAXIMUM_POOLED_CAPACITY = 2048;
+
+    /** Pool of containers, with their header and data array. */
+    private static final Recycler<Container> RECYCLER = new Recycler<Container>(MAXIMUM_POOLED) {
+        @Override
+        protected Container newObject(Handle handle) {
+            return new Container(handle);
+        }
+    };
+
+    static {
+        for (OFVersion version : OFVersion.values()) {
+            versions[version.getWireVersion()] = version;
+        }
+    }
+
+    /** Handle to return the container to the pool, or null if the container was not taken from the pool. */
+    private final Recycler.Handle handle;
     /** The standard 8 byte OpenFlow header. */
     private Header header;
-    /** Raw data after the header, when relaying this is what should be sent */
+    /** Raw data including the header, when relaying this is what should be sent. Pooled containers may have spare capacity at the end. */
     private byte[] data;
+    /** Number of bytes of the data array holding the message. */
+    private int length;
     /** The message type. */
     private Type messageType;
-    /** OFMessage object representing the details of the packet. */
+    /** OFMessage object representing the details of the packet, or null if not yet parsed. */
     private OFMessage packet;
 
     /**
      * Construct a new OpenFlow packet Container.
      *
      * @param header OpenFlow header
-     * @param data raw data from packet, not including header bytes
+     * @param data raw data from packet, including header bytes
      * @param packet an interpreted version of the data in a packet.
      */
     public Container(Header header, byte[] data, Type messageType, OFMessage packet) {
+        this.handle = null;
         this.header = header;
         this.data = data;
+        this.length = data.length;
         this.messageType = messageType;
         this.packet = packet;
     }
 
+    /**
+     * Construct a new OpenFlow packet Container, to be parsed only if the object representation is needed.
+     *
+     * @param header OpenFlow header
+     * @param data raw data from packet, including header bytes
+     * @param messageType the message type
+     */
+    public Container(Header header, byte[] data, Type messageType) {
+        this(header, data, messageType, null);
+    }
+
+    /**
+     * Construct an empty Container for the pool.
+     *
+     * @param handle handle to return the container to the pool
+     */
+    private Container(Recycler.Handle handle) {
+        this.handle = handle;
+        this.header = new Header((short) 0, (short) 0, 0, 0);
+    }
+
+    /**
+     * Read a single OpenFlow message into a pooled Container, the whole message must be readable from the reader
+     * index, which is moved past it.
+     *
+     * @param byteBuf buffer holding the OpenFlow message
+     * @param length number of bytes the message occupies, including the header
+     * @return pooled Container holding a copy of the message
+     */
+    public static Container readFrom(ByteBuf byteBuf, int length) {
+        int index = byteBuf.readerIndex();
+        short version = byteBuf.getUnsignedByte(index);
+        short typeId = byteBuf.getUnsignedByte(index + 1);
+
+        Container container = take(length);
+        byteBuf.readBytes(container.data, 0, length);
+        container.header.set(version, typeId, byteBuf.getUnsignedShort(index + 2), byteBuf.getUnsignedInt(index + 4));
+        container.messageType = Type.getById(version, typeId);
+
+        return container;
+    }
+
+    /**
+     * Take a container from the pool, with room for a message.
+     *
+     * @param length number of bytes the message occupies, including the header
+     * @return pooled Container with a reference count of one
+     */
+    private static Container take(int length) {
+        Container container = RECYCLER.get();
+        container.setRefCnt(1);
+
+        if (container.data == null || container.data.length < length) {
+            container.data = new byte[length];
+        }
+
+        container.length = length;
+
+        return container;
+    }
+
     /**
      * Get OpenFlow Header.
      *
@@ -54,15 +159,112 @@ public class Container {
     }
 
     /**
-     * Get the raw data from the packet, this does not include the OpenFlow header but is what should be sent onwards
-     * when being relayed.
+     * Get the raw data of the packet, the whole message including the OpenFlow header, as it should be sent onwards
+     * when being relayed. A pooled container with spare capacity gives up its array for one of the exact size, so
+     * writeTo() is preferred when relaying.
      *
-     * @return byte array of the OpenFlow packet (not including header)
+     * @return byte array of the OpenFlow packet, including the header
      */
     public byte[] getData() {
+        if (data.length != length) {
+            data = Arrays.copyOf(data, length);
+        }
+
         return data;
     }
 
+    /**
+     * Get the number of bytes of raw data, including the header.
+     *
+     * @return length of the raw data
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Write the raw data to a buffer, as it should be sent onwards when being relayed.
+     *
+     * @param byteBuf buffer to write to
+     */
+    public void writeTo(ByteBuf byteBuf) {
+        byteBuf.writeBytes(data, 0, length);
+    }
+
+    /**
+     * Rewrite the transaction ID of the message, in both the header and the raw data which will be sent. An object
+     * representation of the packet which has already been created is not changed and continues to hold the
+     * transaction ID it was received with.
+     *
+     * @param transactionId new transaction ID
+     */
+    public void setTransactionId(long transactionId) {
+        header.setTransactionId(transactionId);
+
+        data[4] = (byte) (transactionId >>> 24);
+        data[5] = (byte) (transactionId >>> 16);
+        data[6] = (byte) (transactionId >>> 8);
+        data[7] = (byte) transactionId;
+    }
+
+    /**
+     * Create a copy of this container with its own header and raw data, so that the transaction ID of the copy may be
+     * rewritten without changing the original. The object representation of the packet is shared. The copy is taken
+     * from the pool and holds its own reference.
+     *
+     * @return copy of this container
+     */
+    public Container copy() {
+        Container copy = take(length);
+        System.arraycopy(data, 0, copy.data, 0, length);
+        copy.header.set(header.getVersion(), header.getType(), header.getLength(), header.getTransactionId());
+        copy.messageType = messageType;
+        copy.packet = packet;
+
+        return copy;
+    }
+
+    @Override
+    public Container retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public Container retain(int increment) {
+        super.retain(increment);
+        return this;
+    }
+
+    /**
+     * Return the container to the pool once the last reference has been released.
+     */
+    @Override
+    protected void deallocate() {
+        if (handle == null) {
+            return;
+        }
+
+        messageType = null;
+        packet = null;
+
+        if (data.length > MAXIMUM_POOLED_CAPACITY) {
+            data = null;
+        }
+
+        RECYCLER.recycle(this, handle);
+    }
+
+    /**
+     * Get the OpenFlow version of the message from its header, without parsing it.
+     *
+     * @return OpenFlow version, or null if the wire version is not recognised
+     */
+    public OFVersion getVersion() {
+        int wireVersion = header.getVersion();
+        return wireVersion < versions.length ? versions[wireVersion] : null;
+    }
+
     /**
      * Get the messages Type.
      *
@@ -73,11 +275,74 @@ public class Container {
     }
 
     /**
-     * Get the object representation of the packet.
+     * Get the object representation of the packet, parsing the raw data the first time it is asked for.
      *
      * @return object representation of the packet
+     * @throws IllegalStateException if the raw data could not be parsed
      */
     public OFMessage getPacket() {
+        if (packet == null) {
+            try {
+                packet = OFFactories.getGenericReader().readFrom(Unpooled.wrappedBuffer(data, 0, length));
+            } catch (OFParseError e) {
+                throw new IllegalStateException("Unparseable " + messageType + " message", e);
+            }
+        }
+
         return packet;
     }
+
+    /**
+     * Check if the message is a multipart (STATS on OpenFlow 1.0) request, without parsing it.
+     *
+     * @return true if the message is a multipart request
+     */
+    public boolean isMultipartRequest() {
+        return messageType == Type.OFPT_MULTIPART_REQUEST && length >= 12;
+    }
+
+    /**
+     * Check if the message is a multipart (STATS on OpenFlow 1.0) reply, without parsing it.
+     *
+     * @return true if the message is a multipart reply
+     */
+    public boolean isMultipartReply() {
+        return messageType == Type.OFPT_MULTIPART_REPLY && length >= 12;
+    }
+
+    /**
+     * Get the multipart type of a multipart request or reply from the raw data.
+     *
+     * @return multipart type
+     */
+    public int getMultipartType() {
+        return ((data[8] & 0xff) << 8) | (data[9] & 0xff);
+    }
+
+    /**
+     * Get the command of a FLOW_MOD from the raw data, which sits after the match in OpenFlow 1.0 and before it from
+     * OpenFlow 1.1.
+     *
+     * @return FLOW_MOD command, or -1 if the message is not a FLOW_MOD
+     */
+    public int getFlowModCommand() {
+        if (messageType != Type.OFPT_FLOW_MOD) {
+            return -1;
+        }
+
+        if (header.getVersion() == OFVersion.OF_10.getWireVersion()) {
+            return length >= 58 ? ((data[56] & 0xff) << 8) | (data[57] & 0xff) : -1;
+        }
+
+        return length >= 26 ? data[25] & 0xff : -1;
+    }
+
+    /**
+     * Check if a multipart request or reply has more parts to follow, from the raw data.
+     *
+     * @return true if the MORE flag is set
+     */
+    public boolean isMultipartMore() {
+        return (data[11] & 0x01) != 0;
+    }
 }
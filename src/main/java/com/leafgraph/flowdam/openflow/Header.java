@@ -43,6 +43,21 @@ public class Header {
         this.transactionId = transactionId;
     }
 
+    /**
+     * Reset every field, when a pooled Container's header is reused for another packet.
+     *
+     * @param version wire version of packet
+     * @param type packet type
+     * @param length packet length (including header)
+     * @param transactionId transaction ID of request
+     */
+    void set(short version, short type, int length, long transactionId) {
+        this.version = version;
+        this.type = type;
+        this.length = length;
+        this.transactionId = transactionId;
+    }
+
     /**
      * Get the wire version of the OpenFlow packet.
      *
@@ -78,4 +93,13 @@ public class Header {
     public long getTransactionId() {
         return transactionId;
     }
+
+    /**
+     * Set the transaction ID of this OpenFlow packet.
+     *
+     * @param transactionId transaction ID of packet
+     */
+    public void setTransactionId(long transactionId) {
+        this.transactionId = transactionId;
+    }
 }
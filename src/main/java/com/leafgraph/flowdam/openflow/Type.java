@@ -15,90 +15,166 @@
  */
 package com.leafgraph.flowdam.openflow;
 
-import java.util.HashMap;
-import java.util.Map;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+
+import java.util.Arrays;
+
+import static org.projectfloodlight.openflow.protocol.OFVersion.OF_10;
+import static org.projectfloodlight.openflow.protocol.OFVersion.OF_11;
+import static org.projectfloodlight.openflow.protocol.OFVersion.OF_12;
+import static org.projectfloodlight.openflow.protocol.OFVersion.OF_13;
+import static org.projectfloodlight.openflow.protocol.OFVersion.OF_14;
+import static org.projectfloodlight.openflow.protocol.OFVersion.OF_15;
 
 /**
  * Definitions of all different types of OpenFlow messages, their type numbers and direction the messages are
  * expected in.
+ *
+ * Type numbers are those of OpenFlow 1.1 onwards, OpenFlow 1.0 numbers some messages differently (e.g. STATS_REQUEST,
+ * which later became MULTIPART_REQUEST, is 16 rather than 18). Lookups are therefore made by wire version and type
+ * number, anything not defined for the version is OFPT_UNKNOWN and is passed through without being parsed.
  */
 public enum Type {
     /* Immutable messages. */
-    OFPT_HELLO(0, Direction.SYMMETRIC),
-    OFPT_ERROR(1, Direction.SYMMETRIC),
-    OFPT_ECHO_REQUEST(2, Direction.SYMMETRIC),
-    OFPT_ECHO_REPLY(3, Direction.SYMMETRIC),
-    OFPT_EXPERIMENTER(4, Direction.SYMMETRIC),
+    OFPT_HELLO(0, 0, OF_10, OF_15, Direction.SYMMETRIC),
+    OFPT_ERROR(1, 1, OF_10, OF_15, Direction.SYMMETRIC),
+    OFPT_ECHO_REQUEST(2, 2, OF_10, OF_15, Direction.SYMMETRIC),
+    OFPT_ECHO_REPLY(3, 3, OF_10, OF_15, Direction.SYMMETRIC),
+    OFPT_EXPERIMENTER(4, 4, OF_10, OF_15, Direction.SYMMETRIC),
 
     /* Switch configuration messages. */
-    OFPT_FEATURES_REQUEST(5, Direction.CONTROLLER_SWITCH),
-    OFPT_FEATURES_REPLY(6, Direction.CONTROLLER_SWITCH),
-    OFPT_GET_CONFIG_REQUEST(7, Direction.CONTROLLER_SWITCH),
-    OFPT_GET_CONFIG_REPLY(8, Direction.CONTROLLER_SWITCH),
-    OFPT_SET_CONFIG(9, Direction.CONTROLLER_SWITCH),
+    OFPT_FEATURES_REQUEST(5, 5, OF_10, OF_15, Direction.CONTROLLER_SWITCH),
+    OFPT_FEATURES_REPLY(6, 6, OF_10, OF_15, Direction.CONTROLLER_SWITCH),
+    OFPT_GET_CONFIG_REQUEST(7, 7, OF_10, OF_15, Direction.CONTROLLER_SWITCH),
+    OFPT_GET_CONFIG_REPLY(8, 8, OF_10, OF_15, Direction.CONTROLLER_SWITCH),
+    OFPT_SET_CONFIG(9, 9, OF_10, OF_15, Direction.CONTROLLER_SWITCH),
 
     /* Asynchronous messages. */
-    OFPT_PACKET_IN(10, Direction.ASYNCHRONOUS),
-    OFPT_FLOW_REMOVED(11, Direction.ASYNCHRONOUS),
-    OFPT_PORT_STATUS(12, Direction.ASYNCHRONOUS),
+    OFPT_PACKET_IN(10, 10, OF_10, OF_15, Direction.ASYNCHRONOUS),
+    OFPT_FLOW_REMOVED(11, 11, OF_10, OF_15, Direction.ASYNCHRONOUS),
+    OFPT_PORT_STATUS(12, 12, OF_10, OF_15, Direction.ASYNCHRONOUS),
 
     /* Controller command messages. */
-    OFPT_PACKET_OUT(13, Direction.CONTROLLER_SWITCH),
-    OFPT_FLOW_MOD(14, Direction.CONTROLLER_SWITCH),
-    OFPT_GROUP_MOD(15, Direction.CONTROLLER_SWITCH),
-    OFPT_PORT_MOD(16, Direction.CONTROLLER_SWITCH),
-    OFPT_TABLE_MOD(17, Direction.CONTROLLER_SWITCH),
+    OFPT_PACKET_OUT(13, 13, OF_10, OF_15, Direction.CONTROLLER_SWITCH),
+    OFPT_FLOW_MOD(14, 14, OF_10, OF_15, Direction.CONTROLLER_SWITCH),
+    OFPT_GROUP_MOD(15, -1, OF_11, OF_15, Direction.CONTROLLER_SWITCH),
+    OFPT_PORT_MOD(16, 15, OF_10, OF_15, Direction.CONTROLLER_SWITCH),
+    OFPT_TABLE_MOD(17, -1, OF_11, OF_15, Direction.CONTROLLER_SWITCH),
 
-    /* Mutlipart messages. */
-    OFPT_MULTIPART_REQUEST(18, Direction.CONTROLLER_SWITCH),
-    OFPT_MULTIPART_REPLY(19, Direction.CONTROLLER_SWITCH),
+    /* Mutlipart messages, known as statistics messages before OpenFlow 1.3. */
+    OFPT_MULTIPART_REQUEST(18, 16, OF_10, OF_15, Direction.CONTROLLER_SWITCH),
+    OFPT_MULTIPART_REPLY(19, 17, OF_10, OF_15, Direction.CONTROLLER_SWITCH),
 
     /* Barrier messages. */
-    OFPT_BARRIER_REQUEST(20, Direction.CONTROLLER_SWITCH),
-    OFPT_BARRIER_REPLY(21, Direction.CONTROLLER_SWITCH),
+    OFPT_BARRIER_REQUEST(20, 18, OF_10, OF_15, Direction.CONTROLLER_SWITCH),
+    OFPT_BARRIER_REPLY(21, 19, OF_10, OF_15, Direction.CONTROLLER_SWITCH),
 
-    /* Queue Configuration messages. */
-    OFPT_QUEUE_GET_CONFIG_REQUEST(22, Direction.CONTROLLER_SWITCH),
-    OFPT_QUEUE_GET_CONFIG_REPLY(23, Direction.CONTROLLER_SWITCH),
+    /* Queue Configuration messages, replaced by multipart messages in OpenFlow 1.4. */
+    OFPT_QUEUE_GET_CONFIG_REQUEST(22, 20, OF_10, OF_13, Direction.CONTROLLER_SWITCH),
+    OFPT_QUEUE_GET_CONFIG_REPLY(23, 21, OF_10, OF_13, Direction.CONTROLLER_SWITCH),
 
     /* Controller role change request messages. */
-    OFPT_ROLE_REQUEST(24, Direction.CONTROLLER_SWITCH),
-    OFPT_ROLE_REPLY(25, Direction.CONTROLLER_SWITCH),
+    OFPT_ROLE_REQUEST(24, -1, OF_12, OF_15, Direction.CONTROLLER_SWITCH),
+    OFPT_ROLE_REPLY(25, -1, OF_12, OF_15, Direction.CONTROLLER_SWITCH),
 
     /* Asynchronous message configuration. */
-    OFPT_GET_ASYNC_REQUEST(26, Direction.CONTROLLER_SWITCH),
-    OFPT_GET_ASYNC_REPLY(27, Direction.CONTROLLER_SWITCH),
-    OFPT_SET_ASYNC(28, Direction.CONTROLLER_SWITCH),
+    OFPT_GET_ASYNC_REQUEST(26, -1, OF_13, OF_15, Direction.CONTROLLER_SWITCH),
+    OFPT_GET_ASYNC_REPLY(27, -1, OF_13, OF_15, Direction.CONTROLLER_SWITCH),
+    OFPT_SET_ASYNC(28, -1, OF_13, OF_15, Direction.CONTROLLER_SWITCH),
 
     /* Meters and rate limiters configuration messages. */
-    OFPT_METER_MOD(29, Direction.CONTROLLER_SWITCH);
+    OFPT_METER_MOD(29, -1, OF_13, OF_15, Direction.CONTROLLER_SWITCH),
+
+    /* Controller role and table status messages. */
+    OFPT_ROLE_STATUS(30, -1, OF_14, OF_15, Direction.ASYNCHRONOUS),
+    OFPT_TABLE_STATUS(31, -1, OF_14, OF_15, Direction.ASYNCHRONOUS),
+
+    /* Request forwarding by the switch. */
+    OFPT_REQUESTFORWARD(32, -1, OF_14, OF_15, Direction.ASYNCHRONOUS),
+
+    /* Bundle operations (multiple messages as a single operation). */
+    OFPT_BUNDLE_CONTROL(33, -1, OF_14, OF_15, Direction.CONTROLLER_SWITCH),
+    OFPT_BUNDLE_ADD_MESSAGE(34, -1, OF_14, OF_15, Direction.CONTROLLER_SWITCH),
+
+    /* Controller Status async message. */
+    OFPT_CONTROLLER_STATUS(35, -1, OF_15, OF_15, Direction.ASYNCHRONOUS),
+
+    /* Any message not defined for its version, forwarded untouched. */
+    OFPT_UNKNOWN(-1, -1, OF_10, OF_10, Direction.SYMMETRIC);
+
+    /**
+     * Type ID of a type which is not defined for a version.
+     */
+    public static final int NONE = -1;
 
     /**
-     * Internal cache of type number to Type object.
+     * Table of Types by wire version and type number. Row zero is for unrecognised versions, which can't be parsed so
+     * are all unknown.
      */
-    private static Map<Integer, Type> idMap = new HashMap<>();
+    private static final Type[][] byVersion = new Type[OF_15.getWireVersion() + 1][256];
 
     static {
-        /* Fill internal cache of ids to objects. */
+        /* Fill the table, every slot not defined for its version being unknown. */
+        for (Type[] types : byVersion) {
+            Arrays.fill(types, OFPT_UNKNOWN);
+        }
+
         for (Type type : Type.values()) {
-            idMap.put(type.getId(), type);
+            if (type == OFPT_UNKNOWN) {
+                continue;
+            }
+
+            for (OFVersion version : OFVersion.values()) {
+                if (version.compareTo(type.since) < 0 || version.compareTo(type.until) > 0) {
+                    continue;
+                }
+
+                int id = (version == OF_10 ? type.legacyId : type.id);
+
+                if (id != NONE) {
+                    byVersion[version.getWireVersion()][id] = type;
+                }
+            }
         }
     }
 
     /**
-     * Get an Type by the on wire protocol id.
+     * Get an Type by the on wire protocol id, as numbered by OpenFlow 1.3.
      *
      * @param id type id to look up
-     * @return Type represented by it, or null if not recognised
+     * @return Type represented by it, or OFPT_UNKNOWN if not recognised
      */
     public static Type getById(int id) {
-        return idMap.get(id);
+        return getById(OF_13.getWireVersion(), id);
     }
 
     /**
-     * Type ID
+     * Get an Type by the on wire protocol version and id.
+     *
+     * @param version wire version of the message
+     * @param id type id to look up
+     * @return Type represented by it, or OFPT_UNKNOWN if not recognised for the version
+     */
+    public static Type getById(int version, int id) {
+        return byVersion[version < byVersion.length ? version : 0][id & 0xff];
+    }
+
+    /**
+     * Type ID, as numbered from OpenFlow 1.1.
      */
     private int id;
+    /**
+     * Type ID in OpenFlow 1.0, or NONE if not defined.
+     */
+    private int legacyId;
+    /**
+     * First OpenFlow version to define the type.
+     */
+    private OFVersion since;
+    /**
+     * Last OpenFlow version to define the type.
+     */
+    private OFVersion until;
     /**
      * Direction of message expected.
      */
@@ -107,11 +183,17 @@ public enum Type {
     /**
      * Create a new Type object.
      *
-     * @param id        wire protocol type id
+     * @param id        wire protocol type id, as numbered from OpenFlow 1.1
+     * @param legacyId  wire protocol type id in OpenFlow 1.0, or -1 if not defined
+     * @param since     first OpenFlow version to define the type
+     * @param until     last OpenFlow version to define the type
      * @param direction direction messages is expected
      */
-    Type(int id, Direction direction) {
+    Type(int id, int legacyId, OFVersion since, OFVersion until, Direction direction) {
         this.id = id;
+        this.legacyId = legacyId;
+        this.since = since;
+        this.until = until;
         this.direction = direction;
     }
 
@@ -125,11 +207,25 @@ public enum Type {
     }
 
     /**
-     * Get the wire protocol type id.
+     * Get the wire protocol type id, as numbered from OpenFlow 1.1.
      *
-     * @return type id number
+     * @return type id number, or NONE for OFPT_UNKNOWN
      */
     public int getId() {
         return id;
     }
+
+    /**
+     * Get the wire protocol type id for an OpenFlow version.
+     *
+     * @param version OpenFlow version
+     * @return type id number, or NONE if the type is not defined for the version
+     */
+    public int getId(OFVersion version) {
+        if (this == OFPT_UNKNOWN || version.compareTo(since) < 0 || version.compareTo(until) > 0) {
+            return NONE;
+        }
+
+        return version == OF_10 ? legacyId : id;
+    }
 }
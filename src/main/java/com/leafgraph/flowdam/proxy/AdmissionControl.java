@@ -0,0 +1,282 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.proxy;
+
+import com.leafgraph.flowdam.Flowdam;
+import io.netty.channel.Channel;
+import io.netty.handler.ssl.SslHandler;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AdmissionControl limits how quickly switches accepted by a proxy begin their handshake with the controllers, so
+ * that a reconnect storm after a restart reaches the controllers as a ramp. Switches are admitted at the accept rate
+ * using a token bucket, and only while fewer than the maximum number of handshakes are in progress.
+ *
+ * Switches waiting to be admitted have reading from their channel paused rather than being refused, so they wait in
+ * the kernel's buffers without any controller connection. Switches from addresses which have completed a handshake
+ * before, most likely the same datapaths reconnecting, are admitted ahead of switches not seen before.
+ *
+ * The lock of AdmissionControl is taken last, nothing is called holding it which takes the lock of the proxy or of a
+ * ProxiedConnection. Controllers are connected from the scheduler for that reason.
+ */
+class AdmissionControl {
+    /** Maximum number of addresses remembered as having completed a handshake, the least recent are forgotten. */
+    private static final int MAXIMUM_KNOWN_ADDRESSES = 65536;
+
+    /** Proxy whose switches are admitted. */
+    private Proxy proxy;
+    /** Scheduler for admitting switches once tokens or handshake slots are available. */
+    private ScheduledExecutorService scheduler;
+
+    /** Number of switches which may currently be admitted under the accept rate. */
+    private double tokens;
+    /** Time in nanoseconds tokens were last added, or zero if never. */
+    private long lastRefill = 0;
+
+    /** Switches waiting from addresses which have completed a handshake before, oldest first. */
+    private ArrayDeque<ProxiedConnection> knownWaiting = new ArrayDeque<>();
+    /** Switches waiting from addresses not seen before, oldest first. */
+    private ArrayDeque<ProxiedConnection> unknownWaiting = new ArrayDeque<>();
+    /** Switches admitted whose handshake is still counted. */
+    private Set<ProxiedConnection> handshaking = new HashSet<>();
+    /** Addresses of switches which have completed a handshake, least recent first. */
+    private Set<InetAddress> knownAddresses = Collections.newSetFromMap(new LinkedHashMap<InetAddress, Boolean>(16, 0.75f, true) {
+        /** Version of the serialised form, never serialised but declared as LinkedHashMap is Serializable. */
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetAddress, Boolean> eldest) {
+            return size() > MAXIMUM_KNOWN_ADDRESSES;
+        }
+    });
+    /** Scheduled admission of waiting switches, or null if not scheduled. */
+    private ScheduledFuture<?> admitFuture;
+    /** Flag to specify if switches have been left waiting, logged once until every one has been admitted. */
+    private boolean backlogged = false;
+
+    /**
+     * Construct a new AdmissionControl for the proxy.
+     *
+     * @param proxy proxy whose switches are admitted
+     * @param scheduler scheduler for admitting waiting switches
+     */
+    AdmissionControl(Proxy proxy, ScheduledExecutorService scheduler) {
+        this.proxy = proxy;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Admit a newly accepted switch, connecting it to the controllers straight away if permitted, otherwise pausing
+     * reading from it until it is. Called from the switch's event loop as its channel becomes active.
+     *
+     * @param proxiedConnection ProxiedConnection of the switch
+     * @param upstream channel to the switch
+     */
+    void admit(ProxiedConnection proxiedConnection, Channel upstream) {
+        ProxySettings settings = proxy.getSettings();
+
+        synchronized (this) {
+            boolean limited = settings.getAcceptRate() > 0 || settings.getMaximumHandshakes() > 0;
+
+            if (limited || !knownWaiting.isEmpty() || !unknownWaiting.isEmpty()) {
+                upstream.config().setAutoRead(false);
+
+                if (isKnown(upstream)) {
+                    knownWaiting.add(proxiedConnection);
+                } else {
+                    unknownWaiting.add(proxiedConnection);
+                }
+
+                proxiedConnection = null;
+            }
+        }
+
+        if (proxiedConnection == null) {
+            admitWaiting();
+        } else {
+            expireTls(upstream, settings);
+            proxiedConnection.connectControllers();
+        }
+    }
+
+    /**
+     * Admit as many waiting switches as the accept rate and the maximum number of handshakes allow, scheduling the
+     * next admission if any remain waiting for tokens.
+     */
+    private void admitWaiting() {
+        ProxySettings settings = proxy.getSettings();
+        List<ProxiedConnection> admitted = new ArrayList<>();
+
+        synchronized (this) {
+            if (admitFuture != null && !admitFuture.isDone()) {
+                admitFuture.cancel(false);
+            }
+
+            admitFuture = null;
+            refill(settings);
+
+            while (!knownWaiting.isEmpty() || !unknownWaiting.isEmpty()) {
+                if (settings.getMaximumHandshakes() > 0 && handshaking.size() >= settings.getMaximumHandshakes()) {
+                    /* Admitted again as handshakes complete. */
+                    break;
+                }
+
+                if (settings.getAcceptRate() > 0 && tokens < 1) {
+                    long delay = (long) Math.ceil((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / settings.getAcceptRate());
+                    admitFuture = scheduler.schedule(this::admitWaiting, delay, TimeUnit.NANOSECONDS);
+                    break;
+                }
+
+                ProxiedConnection next = !knownWaiting.isEmpty() ? knownWaiting.poll() : unknownWaiting.poll();
+
+                if (settings.getAcceptRate() > 0) {
+                    tokens -= 1;
+                }
+
+                handshaking.add(next);
+                admitted.add(next);
+            }
+
+            int waiting = knownWaiting.size() + unknownWaiting.size();
+
+            if (waiting > 0 && !backlogged) {
+                backlogged = true;
+                Flowdam.logger.info("Admission limited for " + settings.getLocalAddress() + ", " + waiting + " switches waiting with "
+                        + handshaking.size() + " handshakes in progress");
+            } else if (waiting == 0 && backlogged) {
+                backlogged = false;
+                Flowdam.logger.info("Admitted every waiting switch for " + settings.getLocalAddress());
+            }
+        }
+
+        for (ProxiedConnection proxiedConnection : admitted) {
+            Channel upstream = proxiedConnection.getUpstream();
+
+            if (upstream == null) {
+                /* Disconnected while waiting. */
+                release(proxiedConnection);
+                continue;
+            }
+
+            upstream.eventLoop().schedule(() -> release(proxiedConnection), settings.getHandshakeTimeout(), TimeUnit.MILLISECONDS);
+            expireTls(upstream, settings);
+            proxiedConnection.connectControllers();
+            upstream.config().setAutoRead(true);
+        }
+    }
+
+    /**
+     * Close an admitted switch if it has not completed its TLS handshake within the handshake timeout. The TLS handler
+     * of a switch has no timeout of its own, as it would run while the switch waits to be admitted.
+     *
+     * @param upstream channel to the switch
+     * @param settings current settings of the proxy
+     */
+    private void expireTls(Channel upstream, ProxySettings settings) {
+        SslHandler tls = upstream.pipeline().get(SslHandler.class);
+
+        if (tls == null || settings.getHandshakeTimeout() <= 0) {
+            return;
+        }
+
+        upstream.eventLoop().schedule(() -> {
+            if (!tls.handshakeFuture().isDone()) {
+                Flowdam.logger.info("TLS handshake from " + upstream.remoteAddress() + " timed out");
+                upstream.close();
+            }
+        }, settings.getHandshakeTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add tokens for the time elapsed since the last refill.
+     *
+     * @param settings current settings of the proxy
+     */
+    private void refill(ProxySettings settings) {
+        long now = System.nanoTime();
+        int burst = Math.max(1, settings.getAcceptBurst());
+
+        if (lastRefill == 0) {
+            tokens = burst;
+        } else {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * settings.getAcceptRate() / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        lastRefill = now;
+    }
+
+    /**
+     * Record a switch completing its handshake, freeing its handshake slot and remembering its address so that it is
+     * admitted first should it reconnect.
+     *
+     * @param proxiedConnection ProxiedConnection of the switch
+     * @param upstream channel to the switch, or null if it has already gone
+     */
+    void handshakeComplete(ProxiedConnection proxiedConnection, Channel upstream) {
+        if (upstream != null && upstream.remoteAddress() instanceof InetSocketAddress) {
+            synchronized (this) {
+                knownAddresses.add(((InetSocketAddress) upstream.remoteAddress()).getAddress());
+            }
+        }
+
+        release(proxiedConnection);
+    }
+
+    /**
+     * Stop counting a switch towards the maximum number of handshakes, or stop it waiting if not yet admitted, as its
+     * handshake has completed, timed out or the switch has gone. Anything waiting is admitted from the scheduler, as
+     * this may be called holding the locks of the proxy and the ProxiedConnection.
+     *
+     * @param proxiedConnection ProxiedConnection of the switch
+     */
+    synchronized void release(ProxiedConnection proxiedConnection) {
+        if (!handshaking.remove(proxiedConnection)) {
+            if (!knownWaiting.remove(proxiedConnection)) {
+                unknownWaiting.remove(proxiedConnection);
+            }
+
+            return;
+        }
+
+        if (admitFuture == null && (!knownWaiting.isEmpty() || !unknownWaiting.isEmpty())) {
+            admitFuture = scheduler.schedule(this::admitWaiting, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Check if a switch is connecting from an address which has completed a handshake before.
+     *
+     * @param upstream channel to the switch
+     * @return true if the address is known
+     */
+    private boolean isKnown(Channel upstream) {
+        return upstream.remoteAddress() instanceof InetSocketAddress
+                && knownAddresses.contains(((InetSocketAddress) upstream.remoteAddress()).getAddress());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.proxy;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * BarrierTracker follows the BARRIER_REQUESTs sent to a switch and their replies, so the proxy knows when the switch
+ * has finished processing every command it has been sent. A BARRIER_REQUEST arriving at that point may be answered
+ * by the proxy without changing its meaning.
+ *
+ * Likewise a BARRIER_REQUEST arriving while the last one sent is still outstanding, with no command sent since, means
+ * nothing more than the outstanding one. It may be coalesced with it, sharing its BARRIER_REPLY.
+ */
+class BarrierTracker {
+    /** Number of outstanding BARRIER_REQUESTs remembered with coalesced requests waiting on them. */
+    private static final int MAXIMUM_COALESCED_BARRIERS = 1024;
+
+    /** Number of BARRIER_REQUESTs sent to the switch which have not yet been replied to. */
+    private int outstandingBarriers = 0;
+    /** Flag to specify if a command has been sent to the switch since the last BARRIER_REQUEST. */
+    private boolean commandsPending = false;
+    /** Transaction ID of the last BARRIER_REQUEST sent to the switch. */
+    private long lastBarrier;
+    /** Requests coalesced with each outstanding BARRIER_REQUEST, by its transaction ID, as requester and original
+     * transaction ID pairs. */
+    private Map<Long, long[]> coalesced = new LinkedHashMap<>();
+
+    /**
+     * Record a command other than a BARRIER_REQUEST being sent to the switch.
+     */
+    void commandSent() {
+        commandsPending = true;
+    }
+
+    /**
+     * Record a BARRIER_REQUEST being sent to the switch.
+     *
+     * @param transactionId transaction ID the BARRIER_REQUEST was sent with
+     */
+    void barrierSent(long transactionId) {
+        outstandingBarriers++;
+        commandsPending = false;
+        lastBarrier = transactionId;
+    }
+
+    /**
+     * Record a BARRIER_REPLY being received from the switch.
+     *
+     * @param transactionId transaction ID of the BARRIER_REPLY, as sent to the switch
+     * @return requests coalesced with the BARRIER_REQUEST replied to, as requester and original transaction ID pairs,
+     * or null if there were none
+     */
+    long[] barrierReplied(long transactionId) {
+        if (outstandingBarriers > 0) {
+            outstandingBarriers--;
+        }
+
+        return coalesced.remove(transactionId);
+    }
+
+    /**
+     * Check if the switch has finished processing every command it has been sent.
+     *
+     * @return true if no commands or BARRIER_REQUESTs are in flight to the switch
+     */
+    boolean isQuiescent() {
+        return outstandingBarriers == 0 && !commandsPending;
+    }
+
+    /**
+     * Check if a BARRIER_REQUEST may share the reply of the last one sent, as that is outstanding and no command has
+     * been sent since.
+     *
+     * @return true if a BARRIER_REQUEST may be coalesced
+     */
+    boolean canCoalesce() {
+        return outstandingBarriers > 0 && !commandsPending;
+    }
+
+    /**
+     * Coalesce a BARRIER_REQUEST with the last one sent, to be answered when that is replied to. If too many
+     * outstanding BARRIER_REQUESTs have requests waiting on them, the oldest is forgotten and its waiting requests
+     * returned, so that they can be refused rather than never answered.
+     *
+     * @param requester ID of the requester
+     * @param transactionId original transaction ID of the request
+     * @return requests forgotten, as requester and original transaction ID pairs, or null if there were none
+     */
+    long[] coalesce(int requester, long transactionId) {
+        long[] waiting = coalesced.get(lastBarrier);
+        long[] forgotten = null;
+
+        if (waiting == null && coalesced.size() >= MAXIMUM_COALESCED_BARRIERS) {
+            Iterator<long[]> eldest = coalesced.values().iterator();
+            forgotten = eldest.next();
+            eldest.remove();
+        }
+
+        int length = (waiting != null ? waiting.length : 0);
+
+        waiting = (waiting != null ? Arrays.copyOf(waiting, length + 2) : new long[2]);
+        waiting[length] = requester;
+        waiting[length + 1] = transactionId;
+
+        coalesced.put(lastBarrier, waiting);
+        return forgotten;
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.proxy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+import org.projectfloodlight.openflow.protocol.OFControllerRole;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.function.Predicate;
+
+/**
+ * ControllerConnection holds the state of one downstream channel to a controller within a ProxiedConnection. When
+ * failing over the ControllerConnection outlives its channel, keeping its queue while a new channel is connected.
+ *
+ * Queued messages are held already encoded, in pooled direct buffers, so that a long controller outage does not fill
+ * the heap. The buffers must be released, by draining or clearing the queue, before the connection is discarded.
+ */
+class ControllerConnection {
+    /** ID of the current channel, unique within its ProxiedConnection. */
+    private int id;
+    /** Netty channel used for the controller connection, or null while connecting. */
+    private Channel channel;
+    /** Index of the controller address this connection is using. */
+    private int addressIndex;
+    /** Time in milliseconds failover started, or zero if not failing over. */
+    private long failoverStarted = 0;
+    /** Number of connection attempts made since failover started. */
+    private int failoverAttempts = 0;
+    /** Number of messages dropped as the queue was full. */
+    private int droppedCount = 0;
+    /** Flag to specify if the handshake is being replayed to the controller from the proxy's cache. */
+    private boolean replayingHandshake = false;
+    /** Controller version. */
+    private OFVersion version;
+    /** Flag to specify if the channel has reached channelActive. */
+    private boolean active = false;
+    /** Role the controller holds, controllers start as equals. */
+    private OFControllerRole role = OFControllerRole.ROLE_EQUAL;
+    /** Queue for outgoing packets to the controller which could not yet be sent, each an encoded message. */
+    private ArrayDeque<ByteBuf> queue = new ArrayDeque<>();
+    /** Number of bytes held in the queue. */
+    private int queuedBytes = 0;
+    /** File holding messages which did not fit in the queue, or null if nothing has been spilled. */
+    private SpillFile spill;
+
+    /**
+     * Construct a new ControllerConnection, awaiting a channel.
+     *
+     * @param addressIndex index of the controller address to connect to
+     */
+    ControllerConnection(int addressIndex) {
+        this.addressIndex = addressIndex;
+    }
+
+    /**
+     * Attach a newly connecting channel, resetting anything learnt from the previous channel.
+     *
+     * @param id ID unique within the owning ProxiedConnection
+     * @param channel channel to the controller
+     */
+    void attach(int id, Channel channel) {
+        this.id = id;
+        this.channel = channel;
+        version = null;
+        active = false;
+        role = OFControllerRole.ROLE_EQUAL;
+    }
+
+    /**
+     * Detach the channel once it has closed, keeping the queue for the next channel.
+     */
+    void detach() {
+        channel = null;
+        active = false;
+        replayingHandshake = false;
+    }
+
+    /**
+     * Get the ID of the current channel.
+     *
+     * @return ID unique within the owning ProxiedConnection
+     */
+    int getId() {
+        return id;
+    }
+
+    /**
+     * Get the channel to the controller.
+     *
+     * @return channel to the controller, or null while connecting
+     */
+    Channel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Get the index of the controller address this connection is using.
+     *
+     * @return index of the controller address
+     */
+    int getAddressIndex() {
+        return addressIndex;
+    }
+
+    /**
+     * Set the index of the controller address this connection is using.
+     *
+     * @param addressIndex index of the controller address
+     */
+    void setAddressIndex(int addressIndex) {
+        this.addressIndex = addressIndex;
+    }
+
+    /**
+     * Get the time failover started.
+     *
+     * @return time in milliseconds failover started, or zero if not failing over
+     */
+    long getFailoverStarted() {
+        return failoverStarted;
+    }
+
+    /**
+     * Set the time failover started.
+     *
+     * @param failoverStarted time in milliseconds failover started, or zero once complete
+     */
+    void setFailoverStarted(long failoverStarted) {
+        this.failoverStarted = failoverStarted;
+    }
+
+    /**
+     * Get the number of connection attempts made since failover started.
+     *
+     * @return number of connection attempts
+     */
+    int getFailoverAttempts() {
+        return failoverAttempts;
+    }
+
+    /**
+     * Set the number of connection attempts made since failover started.
+     *
+     * @param failoverAttempts number of connection attempts
+     */
+    void setFailoverAttempts(int failoverAttempts) {
+        this.failoverAttempts = failoverAttempts;
+    }
+
+    /**
+     * Record a message being dropped as the queue was full.
+     */
+    void messageDropped() {
+        droppedCount++;
+    }
+
+    /**
+     * Get the number of messages dropped as the queue was full, resetting the count.
+     *
+     * @return number of messages dropped since last called
+     */
+    int takeDroppedCount() {
+        int dropped = droppedCount;
+        droppedCount = 0;
+        return dropped;
+    }
+
+    /**
+     * Check if the handshake is being replayed to the controller from the proxy's cache, during which nothing else
+     * is sent to it.
+     *
+     * @return true if the handshake is being replayed
+     */
+    boolean isReplayingHandshake() {
+        return replayingHandshake;
+    }
+
+    /**
+     * Set if the handshake is being replayed to the controller from the proxy's cache.
+     *
+     * @param replayingHandshake true if the handshake is being replayed
+     */
+    void setReplayingHandshake(boolean replayingHandshake) {
+        this.replayingHandshake = replayingHandshake;
+    }
+
+    /**
+     * Get the OpenFlow version as dictated by the controller's HELLO.
+     *
+     * @return OpenFlow version, or null if no HELLO has been received
+     */
+    OFVersion getVersion() {
+        return version;
+    }
+
+    /**
+     * Set the OpenFlow version as dictated by the controller's HELLO.
+     *
+     * @param version OpenFlow version
+     */
+    void setVersion(OFVersion version) {
+        this.version = version;
+    }
+
+    /**
+     * Check if the channel has reached channelActive and messages may be written to it.
+     *
+     * @return true if the channel is active
+     */
+    boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Mark the channel as having reached channelActive.
+     */
+    void setActive() {
+        active = true;
+    }
+
+    /**
+     * Check if messages to the controller must be queued, either as the channel is not yet active or because spilled
+     * messages are still to be replayed ahead of them.
+     *
+     * @return true if messages must be queued
+     */
+    boolean isQueueing() {
+        return !active || (spill != null && !spill.isEmpty());
+    }
+
+    /**
+     * Get the file holding messages which did not fit in the queue.
+     *
+     * @return spill file, or null if nothing has been spilled
+     */
+    SpillFile getSpill() {
+        return spill;
+    }
+
+    /**
+     * Set the file holding messages which did not fit in the queue.
+     *
+     * @param spill spill file, or null once it has been closed
+     */
+    void setSpill(SpillFile spill) {
+        this.spill = spill;
+    }
+
+    /**
+     * Get the role the controller currently holds.
+     *
+     * @return role of the controller
+     */
+    OFControllerRole getRole() {
+        return role;
+    }
+
+    /**
+     * Set the role the controller currently holds.
+     *
+     * @param role role of the controller
+     */
+    void setRole(OFControllerRole role) {
+        this.role = role;
+    }
+
+    /**
+     * Get the number of messages waiting for the channel to become active.
+     *
+     * @return number of queued messages
+     */
+    int getQueuedMessages() {
+        return queue.size();
+    }
+
+    /**
+     * Get the number of bytes held by messages waiting for the channel to become active.
+     *
+     * @return number of queued bytes
+     */
+    int getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Queue an encoded message until the channel becomes active, taking ownership of the buffer.
+     *
+     * @param message encoded message
+     */
+    void queue(ByteBuf message) {
+        queue.add(message);
+        queuedBytes += message.readableBytes();
+    }
+
+    /**
+     * Remove and release queued messages.
+     *
+     * @param filter returns true for encoded messages to remove
+     * @return number of bytes removed
+     */
+    int removeQueued(Predicate<ByteBuf> filter) {
+        int removed = 0;
+        Iterator<ByteBuf> iterator = queue.iterator();
+
+        while (iterator.hasNext()) {
+            ByteBuf message = iterator.next();
+
+            if (filter.test(message)) {
+                iterator.remove();
+                removed += message.readableBytes();
+                message.release();
+            }
+        }
+
+        queuedBytes -= removed;
+
+        return removed;
+    }
+
+    /**
+     * Take everything queued as a single buffer, composed of the queued buffers without copying them, so that it may
+     * be sent with one gathering write.
+     *
+     * @param allocator allocator for the composite buffer
+     * @return buffer holding every queued message, or null if nothing is queued
+     */
+    ByteBuf drainQueue(ByteBufAllocator allocator) {
+        if (queue.isEmpty()) {
+            return null;
+        }
+
+        ByteBuf drained;
+
+        if (queue.size() == 1) {
+            drained = queue.poll();
+        } else {
+            CompositeByteBuf composite = allocator.compositeDirectBuffer(queue.size());
+            composite.addComponents(true, queue);
+            queue.clear();
+            drained = composite;
+        }
+
+        queuedBytes = 0;
+
+        return drained;
+    }
+
+    /**
+     * Release everything queued.
+     *
+     * @return number of bytes released
+     */
+    int clearQueue() {
+        return removeQueued(message -> true);
+    }
+}
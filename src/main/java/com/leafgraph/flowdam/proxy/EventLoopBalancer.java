@@ -0,0 +1,187 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.proxy;
+
+import com.leafgraph.flowdam.Flowdam;
+import io.netty.channel.EventLoop;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * EventLoopBalancer spreads switches across the worker event loops by the rate of messages each loop is handling. A
+ * new switch is placed on the least loaded loop, and a switch is migrated off the busiest loop when it is carrying
+ * much more than its share.
+ *
+ * Rates are sampled periodically from each ProxiedConnection. Between samples each placement is charged the mean
+ * rate of a switch, so that a burst of new switches does not all land on the same loop.
+ */
+class EventLoopBalancer {
+    /** Proxy whose connections are balanced. */
+    private Proxy proxy;
+    /** Event loops to balance across. */
+    private List<EventLoop> eventLoops;
+    /** Index of each event loop. */
+    private Map<EventLoop, Integer> indexes = new IdentityHashMap<>();
+
+    /** Messages per second on each loop, as last sampled, plus the charge for switches placed since. */
+    private double[] estimatedRates;
+    /** Number of switches on each loop, as last sampled. */
+    private int[] connections;
+    /** Mean messages per second of a switch, as last sampled. */
+    private double meanConnectionRate = 0;
+    /** Time of the last sample in nanoseconds. */
+    private long lastSample = System.nanoTime();
+
+    /**
+     * Construct a new EventLoopBalancer.
+     *
+     * @param proxy proxy whose connections are balanced
+     * @param eventLoops event loops to balance across
+     */
+    EventLoopBalancer(Proxy proxy, List<EventLoop> eventLoops) {
+        this.proxy = proxy;
+        this.eventLoops = eventLoops;
+        estimatedRates = new double[eventLoops.size()];
+        connections = new int[eventLoops.size()];
+
+        for (int i = 0; i < eventLoops.size(); i++) {
+            indexes.put(eventLoops.get(i), i);
+        }
+    }
+
+    /**
+     * Choose the event loop for a new channel.
+     *
+     * @return least loaded event loop
+     */
+    synchronized EventLoop choose() {
+        int chosen = 0;
+
+        for (int i = 1; i < estimatedRates.length; i++) {
+            if (estimatedRates[i] < estimatedRates[chosen] || (estimatedRates[i] == estimatedRates[chosen] && connections[i] < connections[chosen])) {
+                chosen = i;
+            }
+        }
+
+        /* Idle switches still count for something, otherwise they would all be placed together. */
+        estimatedRates[chosen] += Math.max(meanConnectionRate, 1);
+        connections[chosen]++;
+
+        return eventLoops.get(chosen);
+    }
+
+    /**
+     * Sample the message rate of every switch, then migrate a switch off the busiest loop if it exceeds the mean by
+     * more than the proxy's rebalance threshold.
+     */
+    void sample() {
+        long now = System.nanoTime();
+        double seconds = Math.max(now - lastSample, 1) / 1e9;
+        lastSample = now;
+
+        double[] rates = new double[eventLoops.size()];
+        int[] counts = new int[eventLoops.size()];
+        List<List<ProxiedConnection>> byLoop = new ArrayList<>();
+        List<List<Double>> ratesByLoop = new ArrayList<>();
+
+        for (int i = 0; i < eventLoops.size(); i++) {
+            byLoop.add(new ArrayList<>());
+            ratesByLoop.add(new ArrayList<>());
+        }
+
+        /* Connection locks are taken one at a time, never while holding the balancer's. */
+        for (ProxiedConnection proxiedConnection : proxy.getProxiedConnectionsSnapshot()) {
+            EventLoop eventLoop = proxiedConnection.getEventLoop();
+            Integer index = (eventLoop != null ? indexes.get(eventLoop) : null);
+            double rate = proxiedConnection.sampleMessageRate(seconds);
+
+            if (index != null) {
+                rates[index] += rate;
+                counts[index]++;
+                byLoop.get(index).add(proxiedConnection);
+                ratesByLoop.get(index).add(rate);
+            }
+        }
+
+        double total = 0;
+        int totalConnections = 0;
+        int busiest = 0;
+        int idlest = 0;
+
+        for (int i = 0; i < rates.length; i++) {
+            total += rates[i];
+            totalConnections += counts[i];
+            busiest = rates[i] > rates[busiest] ? i : busiest;
+            idlest = rates[i] < rates[idlest] ? i : idlest;
+        }
+
+        synchronized (this) {
+            estimatedRates = rates.clone();
+            connections = counts.clone();
+            meanConnectionRate = totalConnections > 0 ? total / totalConnections : 0;
+        }
+
+        double threshold = proxy.getSettings().getRebalanceThreshold();
+        double mean = total / rates.length;
+
+        if (threshold <= 0 || busiest == idlest || rates[busiest] <= mean * threshold) {
+            return;
+        }
+
+        /* Move the switch which brings the two loops closest to level, it must be less than the gap or it only moves the problem. */
+        double gap = rates[busiest] - rates[idlest];
+        ProxiedConnection candidate = null;
+        double candidateRate = 0;
+
+        for (int i = 0; i < byLoop.get(busiest).size(); i++) {
+            double rate = ratesByLoop.get(busiest).get(i);
+
+            if (rate > 0 && rate < gap && (candidate == null || Math.abs(gap / 2 - rate) < Math.abs(gap / 2 - candidateRate))) {
+                candidate = byLoop.get(busiest).get(i);
+                candidateRate = rate;
+            }
+        }
+
+        if (candidate != null && candidate.migrate(eventLoops.get(idlest))) {
+            Flowdam.logger.info("Migrating " + candidate.getDatapathIdString() + " (" + String.format("%.1f", candidateRate) + " msg/s) from event loop " + busiest + " to " + idlest);
+
+            synchronized (this) {
+                estimatedRates[busiest] -= candidateRate;
+                estimatedRates[idlest] += candidateRate;
+                connections[busiest]--;
+                connections[idlest]++;
+            }
+        }
+    }
+
+    /**
+     * Get the load of each event loop, as last sampled and including switches placed since.
+     *
+     * @return load of each event loop, in index order
+     */
+    synchronized List<EventLoopLoad> getLoads() {
+        List<EventLoopLoad> loads = new ArrayList<>();
+
+        for (int i = 0; i < estimatedRates.length; i++) {
+            loads.add(new EventLoopLoad(i, connections[i], estimatedRates[i]));
+        }
+
+        return loads;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.proxy;
+
+/**
+ * EventLoopLoad is a snapshot of the work one event loop is doing, as last sampled by the proxy.
+ */
+public class EventLoopLoad {
+    /** Index of the event loop within the worker group. */
+    private int index;
+    /** Number of switches whose channels are handled by the event loop. */
+    private int connections;
+    /** Messages per second received on the event loop's channels. */
+    private double messageRate;
+
+    /**
+     * Construct a new EventLoopLoad.
+     *
+     * @param index index of the event loop within the worker group
+     * @param connections number of switches handled by the event loop
+     * @param messageRate messages per second received on the event loop's channels
+     */
+    EventLoopLoad(int index, int connections, double messageRate) {
+        this.index = index;
+        this.connections = connections;
+        this.messageRate = messageRate;
+    }
+
+    /**
+     * Get the index of the event loop within the worker group.
+     *
+     * @return index of the event loop
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Get the number of switches whose channels are handled by the event loop.
+     *
+     * @return number of switches
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Get the messages per second received on the event loop's channels.
+     *
+     * @return messages per second
+     */
+    public double getMessageRate() {
+        return messageRate;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + index + "] " + connections + " switches, " + String.format("%.1f", messageRate) + " msg/s";
+    }
+}
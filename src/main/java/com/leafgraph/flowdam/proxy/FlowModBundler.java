@@ -0,0 +1,422 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.proxy;
+
+import com.leafgraph.flowdam.openflow.Container;
+import com.leafgraph.flowdam.openflow.Header;
+import com.leafgraph.flowdam.openflow.Type;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * FlowModBundler wraps bursts of FLOW_MODs from the controllers to an OpenFlow 1.4+ switch into bundles, so the switch
+ * applies each burst atomically in one pass. A bundle is opened by the first FLOW_MOD and committed by the next
+ * message which is not a FLOW_MOD (typically the BARRIER_REQUEST ending the burst), once it is full, or after a short
+ * delay so that FLOW_MODs are never left uncommitted.
+ *
+ * Support is probed with the first bundle, everything after the OPEN_REQUEST is held until the switch replies. A switch
+ * refusing it, or failing to reply before a bundle's worth of messages is held, is sent the held messages as they
+ * were, and bundling stops for the connection. Requests made by the
+ * bundler use transaction IDs owned by the proxy, their replies are handed back to reply() rather than the controllers.
+ *
+ * A FLOW_MOD which fails in a bundle produces an error for its own transaction ID, which the controller understands. A
+ * failed commit is translated into a FLOW_MOD_FAILED error for every FLOW_MOD of the bundle not already reported.
+ *
+ * Not thread safe, called with the owning ProxiedConnection's lock held.
+ */
+class FlowModBundler {
+    /** Requester ID used for the transaction IDs of the proxy's own requests. */
+    static final int PROXY_REQUESTER = 0;
+
+    /** Wire version of OpenFlow 1.4, the first with bundles. */
+    private static final int BUNDLE_VERSION = OFVersion.OF_14.getWireVersion();
+    /** Bundle control type of an OPEN_REQUEST. */
+    private static final int OPEN_REQUEST = 0;
+    /** Bundle control type of an OPEN_REPLY. */
+    private static final int OPEN_REPLY = 1;
+    /** Bundle control type of a COMMIT_REQUEST. */
+    private static final int COMMIT_REQUEST = 4;
+    /** Bundle flags requesting the messages are applied all or nothing, and in order. */
+    private static final int ATOMIC_ORDERED = 0x3;
+    /** Milliseconds to wait for the switch to answer the probe before taking it not to support bundles. */
+    private static final long PROBE_TIMEOUT = 5000;
+    /** Number of committed bundles remembered while awaiting their reply. */
+    private static final int MAXIMUM_COMMITTING = 1024;
+
+    /** Whether the switch supports bundles. */
+    private enum Support { UNKNOWN, PROBING, SUPPORTED, UNSUPPORTED }
+
+    /** Destination of messages for the switch, in order. */
+    private Consumer<Container> output;
+    /** Allocator of transaction IDs owned by the proxy, given the ID to be returned with the reply. */
+    private Consumer<Container> transactionIdAssigner;
+    /** Scheduler of the delayed commit of a bundle by ID. */
+    private Consumer<Integer> commitScheduler;
+    /** Maximum number of FLOW_MODs in a bundle. */
+    private int maximumMessages;
+
+    /** Whether the switch supports bundles. */
+    private Support support = Support.UNKNOWN;
+    /** Time in milliseconds the probe was sent. */
+    private long probeStarted;
+    /** Source of bundle IDs. */
+    private int bundleIdSource = 0;
+    /** ID of the open bundle, or -1 if none is open. */
+    private int openBundleId = -1;
+    /** Wire version of the open bundle. */
+    private short openVersion;
+    /** FLOW_MODs added to the open bundle. */
+    private List<Container> added = new ArrayList<>();
+    /** Messages held while probing for support. */
+    private List<Container> held = new ArrayList<>();
+    /** FLOW_MODs of committed bundles awaiting the reply to the commit, by bundle ID. */
+    private Map<Integer, List<Container>> committing = new LinkedHashMap<Integer, List<Container>>() {
+        /** Version of the serialised form, never serialised but declared as LinkedHashMap is Serializable. */
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<Container>> eldest) {
+            if (size() <= MAXIMUM_COMMITTING) {
+                return false;
+            }
+
+            /* No reply is coming for a bundle this old, its FLOW_MODs will not be sent again. */
+            release(eldest.getValue());
+            return true;
+        }
+    };
+
+    /**
+     * Construct a new FlowModBundler.
+     *
+     * @param output destination of messages for the switch, in order
+     * @param transactionIdAssigner allocator of transaction IDs owned by the proxy
+     * @param commitScheduler scheduler of the delayed commit of a bundle by ID
+     * @param maximumMessages maximum number of FLOW_MODs in a bundle
+     */
+    FlowModBundler(Consumer<Container> output, Consumer<Container> transactionIdAssigner, Consumer<Integer> commitScheduler, int maximumMessages) {
+        this.output = output;
+        this.transactionIdAssigner = transactionIdAssigner;
+        this.commitScheduler = commitScheduler;
+        this.maximumMessages = Math.max(1, maximumMessages);
+    }
+
+    /**
+     * Send a message from a controller to the switch, bundling it if it is a FLOW_MOD.
+     *
+     * @param container message with its transaction ID already assigned by the proxy
+     */
+    void send(Container container) {
+        if (support == Support.UNSUPPORTED || container.getHeader().getVersion() < BUNDLE_VERSION) {
+            output.accept(container);
+            return;
+        }
+
+        if (support == Support.PROBING) {
+            hold(container);
+            return;
+        }
+
+        process(container);
+    }
+
+    /**
+     * Bundle a FLOW_MOD, or commit the open bundle ahead of any other message.
+     *
+     * @param container message to send
+     */
+    private void process(Container container) {
+        if (container.getMessageType() != Type.OFPT_FLOW_MOD || (openBundleId >= 0 && container.getHeader().getVersion() != openVersion)) {
+            commit();
+            output.accept(container);
+            return;
+        }
+
+        if (openBundleId < 0) {
+            open(container.getHeader().getVersion());
+
+            if (support == Support.PROBING) {
+                hold(container);
+                return;
+            }
+        }
+
+        added.add(container);
+        output.accept(createAdd(container));
+
+        if (added.size() >= maximumMessages) {
+            commit();
+        }
+    }
+
+    /**
+     * Hold a message until the probe is answered, giving up on bundles once a bundle's worth of messages is held so that
+     * a switch slow to answer cannot make the proxy hold messages without limit.
+     *
+     * @param container message to hold
+     */
+    private void hold(Container container) {
+        held.add(container);
+
+        if (held.size() >= maximumMessages) {
+            unsupported();
+        }
+    }
+
+    /**
+     * Open a new bundle, probing for support if it is not yet known.
+     *
+     * @param version wire version of the bundle
+     */
+    private void open(short version) {
+        bundleIdSource = (bundleIdSource + 1) & 0x7FFFFFFF;
+        openBundleId = bundleIdSource;
+        openVersion = version;
+
+        if (support == Support.UNKNOWN) {
+            support = Support.PROBING;
+            probeStarted = System.currentTimeMillis();
+        }
+
+        output.accept(createControl(openBundleId, OPEN_REQUEST));
+        commitScheduler.accept(openBundleId);
+    }
+
+    /**
+     * Commit the open bundle, if there is one.
+     */
+    void commit() {
+        if (openBundleId < 0) {
+            return;
+        }
+
+        committing.put(openBundleId, added);
+        output.accept(createControl(openBundleId, COMMIT_REQUEST));
+
+        openBundleId = -1;
+        added = new ArrayList<>();
+    }
+
+    /**
+     * Commit a bundle once its delay has passed, if it is still open. While the probe is unanswered the check is
+     * repeated, until the switch is taken not to support bundles.
+     *
+     * @param bundleId ID of the bundle
+     */
+    void expire(int bundleId) {
+        if (support == Support.PROBING) {
+            if (System.currentTimeMillis() - probeStarted > PROBE_TIMEOUT) {
+                unsupported();
+            } else {
+                commitScheduler.accept(bundleId);
+            }
+        } else if (bundleId == openBundleId) {
+            commit();
+        }
+    }
+
+    /**
+     * Process the reply to a request made by the bundler.
+     *
+     * @param container reply from the switch, with the transaction ID given by the bundler restored
+     * @return FLOW_MODs of a bundle which failed to commit, to be reported to the controllers and then released
+     */
+    List<Container> reply(Container container) {
+        long transactionId = container.getHeader().getTransactionId();
+        int bundleId = (int) (transactionId >>> 1);
+        boolean commitReply = (transactionId & 1) != 0;
+        boolean failed = (container.getMessageType() == Type.OFPT_ERROR);
+
+        if (!commitReply) {
+            if (support == Support.PROBING) {
+                if (failed || getControlType(container) != OPEN_REPLY) {
+                    unsupported();
+                } else {
+                    supported();
+                }
+            }
+
+            return Collections.emptyList();
+        }
+
+        List<Container> flowMods = committing.remove(bundleId);
+
+        if (flowMods == null) {
+            return Collections.emptyList();
+        }
+
+        if (!failed) {
+            /* The switch has them, so the FLOW_MODs kept in case of failure can go back to the pool. */
+            release(flowMods);
+            return Collections.emptyList();
+        }
+
+        return flowMods;
+    }
+
+    /**
+     * Mark bundles as supported following the probe, sending what was held through the open bundle.
+     */
+    private void supported() {
+        support = Support.SUPPORTED;
+
+        List<Container> release = held;
+        held = new ArrayList<>();
+
+        for (Container container : release) {
+            process(container);
+        }
+    }
+
+    /**
+     * Mark bundles as unsupported, sending what was held as it was.
+     */
+    private void unsupported() {
+        support = Support.UNSUPPORTED;
+        openBundleId = -1;
+        added = new ArrayList<>();
+
+        List<Container> release = held;
+        held = new ArrayList<>();
+
+        for (Container container : release) {
+            output.accept(container);
+        }
+    }
+
+    /**
+     * Discard anything held, used when the switch has gone.
+     */
+    void close() {
+        release(held);
+        release(added);
+
+        for (List<Container> flowMods : committing.values()) {
+            release(flowMods);
+        }
+
+        committing.clear();
+        openBundleId = -1;
+    }
+
+    /**
+     * Release messages the bundler no longer needs, emptying the list.
+     *
+     * @param containers messages to release
+     */
+    private static void release(List<Container> containers) {
+        for (Container container : containers) {
+            container.release();
+        }
+
+        containers.clear();
+    }
+
+    /**
+     * Create a BUNDLE_CONTROL request for the open bundle, with a transaction ID of the proxy's which identifies the
+     * bundle and whether it is the commit.
+     *
+     * @param bundleId ID of the bundle
+     * @param controlType bundle control type
+     * @return the request
+     */
+    private Container createControl(int bundleId, int controlType) {
+        byte[] data = new byte[16];
+        long transactionId = ((long) bundleId << 1 | (controlType == COMMIT_REQUEST ? 1 : 0)) & 0xFFFFFFFFL;
+
+        writeHeader(data, Type.OFPT_BUNDLE_CONTROL, transactionId);
+        writeInt(data, 8, bundleId);
+        data[12] = (byte) (controlType >> 8);
+        data[13] = (byte) controlType;
+        data[15] = (byte) ATOMIC_ORDERED;
+
+        Container container = new Container(new Header(openVersion, (short) Type.OFPT_BUNDLE_CONTROL.getId(), data.length, transactionId), data, Type.OFPT_BUNDLE_CONTROL);
+        transactionIdAssigner.accept(container);
+
+        return container;
+    }
+
+    /**
+     * Wrap a FLOW_MOD in a BUNDLE_ADD_MESSAGE for the open bundle, which shares its transaction ID so errors for it
+     * find their way back to the controller.
+     *
+     * @param flowMod the FLOW_MOD
+     * @return the BUNDLE_ADD_MESSAGE
+     */
+    private Container createAdd(Container flowMod) {
+        byte[] inner = flowMod.getData();
+        byte[] data = new byte[16 + inner.length];
+        long transactionId = flowMod.getHeader().getTransactionId();
+
+        writeHeader(data, Type.OFPT_BUNDLE_ADD_MESSAGE, transactionId);
+        writeInt(data, 8, openBundleId);
+        data[15] = (byte) ATOMIC_ORDERED;
+        System.arraycopy(inner, 0, data, 16, inner.length);
+
+        return new Container(new Header(openVersion, (short) Type.OFPT_BUNDLE_ADD_MESSAGE.getId(), data.length, transactionId), data, Type.OFPT_BUNDLE_ADD_MESSAGE);
+    }
+
+    /**
+     * Write an OpenFlow header into raw data for the open bundle's version.
+     *
+     * @param data raw data of the whole message
+     * @param type message type
+     * @param transactionId transaction ID
+     */
+    private void writeHeader(byte[] data, Type type, long transactionId) {
+        data[0] = (byte) openVersion;
+        data[1] = (byte) type.getId();
+        data[2] = (byte) (data.length >> 8);
+        data[3] = (byte) data.length;
+        writeInt(data, 4, transactionId);
+    }
+
+    /**
+     * Write a big endian 32 bit value into raw data.
+     *
+     * @param data raw data
+     * @param offset offset to write at
+     * @param value value to write
+     */
+    private static void writeInt(byte[] data, int offset, long value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Get the bundle control type of a BUNDLE_CONTROL message from its raw data.
+     *
+     * @param container the message
+     * @return bundle control type, or -1 if the message is not a BUNDLE_CONTROL
+     */
+    private static int getControlType(Container container) {
+        byte[] data = container.getData();
+
+        if (container.getMessageType() != Type.OFPT_BUNDLE_CONTROL || data.length < 14) {
+            return -1;
+        }
+
+        return ((data[12] & 0xff) << 8) | (data[13] & 0xff);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.proxy;
+
+import com.leafgraph.flowdam.openflow.Container;
+import com.leafgraph.flowdam.openflow.Type;
+import org.projectfloodlight.openflow.protocol.OFFlowAdd;
+import org.projectfloodlight.openflow.protocol.OFFlowMod;
+import org.projectfloodlight.openflow.protocol.OFFlowModFlags;
+import org.projectfloodlight.openflow.protocol.OFFlowRemoved;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.protocol.match.Match;
+import org.projectfloodlight.openflow.types.OFBufferId;
+import org.projectfloodlight.openflow.types.TableId;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * FlowModDeduplicator keeps an index of the FLOW_MOD ADDs recently installed on a single switch, allowing exact
+ * duplicates sent by the controller to be absorbed rather than costing the switch another flow install.
+ *
+ * Only ADDs which are idempotent on the switch are indexed, that is those without timeouts (re-adding would reset the
+ * timers), without a buffer ID (re-adding would release a packet) and without the CHECK_OVERLAP or RESET_COUNTS flags.
+ *
+ * The index is forgotten whenever the switch may have removed flows without saying so, such as on deleting a group or
+ * meter, which deletes the flows using it without a FLOW_REMOVED unless they asked for one.
+ */
+class FlowModDeduplicator {
+    /** Offset of the command of a GROUP_MOD or METER_MOD, straight after the header. */
+    private static final int COMMAND_OFFSET = 8;
+    /** Command deleting a group or meter, OFPGC_DELETE and OFPMC_DELETE. */
+    private static final int DELETE_COMMAND = 2;
+
+    /** Index of installed flows by table, priority and match. */
+    private Map<FlowKey, Entry> installed;
+    /** Milliseconds an installed flow is trusted for before a duplicate is forwarded again. */
+    private long entryLifetime;
+
+    /**
+     * Construct a new FlowModDeduplicator.
+     *
+     * @param maximumEntries number of installed flows to remember, the oldest is forgotten first
+     * @param entryLifetime milliseconds an installed flow is remembered for
+     */
+    FlowModDeduplicator(final int maximumEntries, long entryLifetime) {
+        this.entryLifetime = entryLifetime;
+
+        installed = new LinkedHashMap<FlowKey, Entry>() {
+            /** Version of the serialised form, never serialised but declared as LinkedHashMap is Serializable. */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<FlowKey, Entry> eldest) {
+                return size() > maximumEntries;
+            }
+        };
+    }
+
+    /**
+     * Check a FLOW_MOD from the controller against the index, recording it if it will be installed.
+     *
+     * @param flowMod the FLOW_MOD being sent to the switch
+     * @param now current time in milliseconds
+     * @return true if the FLOW_MOD is an exact duplicate of an installed flow and need not be sent
+     */
+    boolean isDuplicate(OFFlowMod flowMod, long now) {
+        if (!(flowMod instanceof OFFlowAdd)) {
+            /* MODIFY and DELETE can touch any number of flows, so forget everything rather than guess. */
+            installed.clear();
+            return false;
+        }
+
+        FlowKey key = new FlowKey(getTableId(flowMod), flowMod.getPriority(), flowMod.getMatch());
+
+        if (!isIdempotent(flowMod)) {
+            installed.remove(key);
+            return false;
+        }
+
+        Entry entry = installed.get(key);
+
+        if (entry != null && (now - entry.installed) < entryLifetime && entry.flowMod.equalsIgnoreXid(flowMod)) {
+            return true;
+        }
+
+        /* Re-insert so the newest install is the last to be forgotten. */
+        installed.remove(key);
+        installed.put(key, new Entry(flowMod, now));
+
+        return false;
+    }
+
+    /**
+     * Forget a flow which the switch reports has been removed.
+     *
+     * @param flowRemoved FLOW_REMOVED message received from the switch
+     */
+    void removed(OFFlowRemoved flowRemoved) {
+        TableId tableId = flowRemoved.getVersion() == OFVersion.OF_10 ? TableId.ZERO : flowRemoved.getTableId();
+        installed.remove(new FlowKey(tableId, flowRemoved.getPriority(), flowRemoved.getMatch()));
+    }
+
+    /**
+     * Record a message other than a FLOW_MOD being sent to the switch, forgetting all installed flows if it deletes a
+     * group or meter, as the flows using it are deleted along with it.
+     *
+     * @param container message being sent to the switch
+     */
+    void commandSent(Container container) {
+        Type type = container.getMessageType();
+
+        if ((type == Type.OFPT_GROUP_MOD || type == Type.OFPT_METER_MOD) && container.getLength() >= COMMAND_OFFSET + 2) {
+            byte[] data = container.getData();
+
+            if ((((data[COMMAND_OFFSET] & 0xff) << 8) | (data[COMMAND_OFFSET + 1] & 0xff)) == DELETE_COMMAND) {
+                clear();
+            }
+        }
+    }
+
+    /**
+     * Forget all installed flows, used when the switch reports an error as any indexed ADD may have failed.
+     */
+    void clear() {
+        installed.clear();
+    }
+
+    /**
+     * Check if sending a FLOW_MOD ADD a second time would leave the switch unchanged.
+     *
+     * @param flowMod FLOW_MOD ADD to check
+     * @return true if it is safe to absorb a duplicate of this FLOW_MOD
+     */
+    private static boolean isIdempotent(OFFlowMod flowMod) {
+        return flowMod.getIdleTimeout() == 0 && flowMod.getHardTimeout() == 0
+                && OFBufferId.NO_BUFFER.equals(flowMod.getBufferId())
+                && !flowMod.getFlags().contains(OFFlowModFlags.CHECK_OVERLAP)
+                && !flowMod.getFlags().contains(OFFlowModFlags.RESET_COUNTS);
+    }
+
+    /**
+     * Get the table a FLOW_MOD applies to, OpenFlow 1.0 has a single table.
+     *
+     * @param flowMod FLOW_MOD to inspect
+     * @return table ID of the FLOW_MOD
+     */
+    private static TableId getTableId(OFFlowMod flowMod) {
+        return flowMod.getVersion() == OFVersion.OF_10 ? TableId.ZERO : flowMod.getTableId();
+    }
+
+    /**
+     * Identity of a flow entry within a switch.
+     */
+    private static class FlowKey {
+        /** Table the flow is installed in. */
+        private TableId tableId;
+        /** Priority of the flow. */
+        private int priority;
+        /** Match of the flow. */
+        private Match match;
+
+        FlowKey(TableId tableId, int priority, Match match) {
+            this.tableId = tableId;
+            this.priority = priority;
+            this.match = match;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FlowKey)) {
+                return false;
+            }
+
+            FlowKey other = (FlowKey) o;
+            return priority == other.priority && tableId.equals(other.tableId) && match.equals(other.match);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tableId, priority, match);
+        }
+    }
+
+    /**
+     * An installed flow and when it was installed.
+     */
+    private static class Entry {
+        /** FLOW_MOD ADD which installed the flow. */
+        private OFFlowMod flowMod;
+        /** Time of install in milliseconds. */
+        private long installed;
+
+        Entry(OFFlowMod flowMod, long installed) {
+            this.flowMod = flowMod;
+            this.installed = installed;
+        }
+    }
+}
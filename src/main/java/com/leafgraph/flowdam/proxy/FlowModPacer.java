@@ -0,0 +1,380 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.proxy;
+
+import com.leafgraph.flowdam.openflow.Container;
+import com.leafgraph.flowdam.openflow.Type;
+import io.netty.channel.Channel;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * FlowModPacer smooths the FLOW_MODs sent from the controller to a switch using a token bucket, queueing anything
+ * sent faster than the switch is allowed to receive it.
+ *
+ * Queued messages are kept in segments separated by BARRIER_REQUESTs, a barrier is only sent once every message
+ * before it has been sent. Within a segment OpenFlow allows the switch to reorder messages, which is what permits
+ * DELETEs to be sent ahead of other messages when prioritised.
+ *
+ * FLOW_MODs wrapped in BUNDLE_ADD_MESSAGEs by the FlowModBundler are paced and prioritised the same, by the FLOW_MOD
+ * within. BUNDLE_CONTROLs end a segment as barriers do, so that no message is moved in or out of its bundle.
+ *
+ * Once the maximum number of messages are queued reading from the controllers is paused, until half the queue has
+ * been sent. The controllers are paused or resumed without the lock of the pacer held, as the ProxiedConnection takes
+ * its lock before the pacer's.
+ */
+class FlowModPacer {
+    /** FLOW_MOD command number of a DELETE, the same in every OpenFlow version. */
+    private static final int FLOW_MOD_DELETE = 3;
+    /** FLOW_MOD command number of a DELETE_STRICT, the same in every OpenFlow version. */
+    private static final int FLOW_MOD_DELETE_STRICT = 4;
+    /** Offset of the FLOW_MOD within a BUNDLE_ADD_MESSAGE. */
+    private static final int BUNDLE_ADD_MESSAGE_HEADER = 16;
+    /** Offset of the command within a FLOW_MOD from OpenFlow 1.4, the first with bundles. */
+    private static final int FLOW_MOD_COMMAND_OFFSET = 25;
+
+    /** Channel to the switch. */
+    private Channel channel;
+    /** FLOW_MODs permitted per nanosecond. */
+    private double rate;
+    /** Maximum number of FLOW_MODs which may be sent back to back. */
+    private int burst;
+    /** Flag to specify if DELETEs are sent ahead of other messages within a segment. */
+    private boolean prioritizeDeletes;
+    /** Maximum number of messages queued before reading from the controllers is paused. */
+    private int maximumQueued;
+    /** Pauses reading from the controllers when given false, resumes when given true. */
+    private Consumer<Boolean> controllerReading;
+
+    /** Number of FLOW_MODs which may currently be sent. */
+    private double tokens;
+    /** Time in nanoseconds tokens were last added. */
+    private long lastRefill;
+
+    /** Segments of queued messages, oldest first. */
+    private ArrayDeque<Segment> segments = new ArrayDeque<>();
+    /** Scheduled drain of the queue, or null if not scheduled. */
+    private ScheduledFuture<?> drainFuture;
+
+    /** Number of messages currently queued. */
+    private int queueDepth = 0;
+    /** Highest number of messages queued at once. */
+    private int maximumQueueDepth = 0;
+    /** Number of messages which have been delayed by pacing. */
+    private long delayedCount = 0;
+    /** Flag to specify if reading from the controllers has been paused until the queue drains. */
+    private boolean paused = false;
+
+    /**
+     * Construct a new FlowModPacer for the switch channel.
+     *
+     * @param channel channel to the switch
+     * @param modsPerSecond FLOW_MODs permitted per second
+     * @param burst maximum number of FLOW_MODs which may be sent back to back
+     * @param prioritizeDeletes true to send DELETEs ahead of other messages within a segment
+     * @param maximumQueued maximum number of messages queued before reading from the controllers is paused
+     * @param controllerReading pauses reading from the controllers when given false, resumes when given true
+     */
+    FlowModPacer(Channel channel, int modsPerSecond, int burst, boolean prioritizeDeletes, int maximumQueued, Consumer<Boolean> controllerReading) {
+        this.channel = channel;
+        this.rate = modsPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, burst);
+        this.prioritizeDeletes = prioritizeDeletes;
+        this.maximumQueued = maximumQueued;
+        this.controllerReading = controllerReading;
+
+        tokens = this.burst;
+        lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Send a message from the controller to the switch, queueing it if required. Called holding the lock of the
+     * ProxiedConnection.
+     *
+     * @param container the container to send
+     */
+    void send(Container container) {
+        if (queue(container)) {
+            /* Checked on every message over the limit, so a controller connected since is paused too. */
+            controllerReading.accept(false);
+        }
+    }
+
+    /**
+     * Send a message straight away if the token bucket allows, otherwise queue it.
+     *
+     * @param container the container to send
+     * @return true if the queue is full and reading from the controllers should be paused
+     */
+    private synchronized boolean queue(Container container) {
+        if (segments.isEmpty()) {
+            refill();
+
+            if (!isFlowMod(container) || tokens >= 1) {
+                take(container);
+                channel.writeAndFlush(container);
+                return false;
+            }
+        }
+
+        delayedCount++;
+
+        Segment tail = segments.peekLast();
+
+        if (tail == null || tail.barrier != null) {
+            tail = new Segment();
+            segments.add(tail);
+        }
+
+        if (isSegmentEnd(container)) {
+            tail.barrier = container;
+        } else if (prioritizeDeletes && isDelete(container)) {
+            tail.deletes.add(container);
+        } else {
+            tail.others.add(container);
+        }
+
+        queueDepth++;
+        maximumQueueDepth = Math.max(maximumQueueDepth, queueDepth);
+
+        scheduleDrain();
+
+        if (queueDepth >= maximumQueued) {
+            paused = true;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Send queued messages, resuming reading from the controllers once half the queue has gone. Runs on the event
+     * loop of the switch without the lock of the ProxiedConnection.
+     */
+    private void drain() {
+        if (drainQueued()) {
+            controllerReading.accept(true);
+        }
+    }
+
+    /**
+     * Send as many queued messages as the token bucket allows, rescheduling if any remain.
+     *
+     * @return true if reading from the controllers was paused and may now be resumed
+     */
+    private synchronized boolean drainQueued() {
+        drainFuture = null;
+        refill();
+
+        boolean written = false;
+        Segment head;
+
+        while ((head = segments.peek()) != null) {
+            Container next = head.deletes.peek();
+            Queue<Container> from = head.deletes;
+
+            if (next == null) {
+                next = head.others.peek();
+                from = head.others;
+            }
+
+            if (next == null) {
+                /* Everything ahead of the barrier has gone, so the barrier may follow. */
+                if (head.barrier != null) {
+                    channel.write(head.barrier);
+                    written = true;
+                    queueDepth--;
+                }
+
+                segments.poll();
+                continue;
+            }
+
+            if (isFlowMod(next) && tokens < 1) {
+                break;
+            }
+
+            from.poll();
+            take(next);
+            channel.write(next);
+            written = true;
+            queueDepth--;
+        }
+
+        if (written) {
+            channel.flush();
+        }
+
+        if (!segments.isEmpty()) {
+            scheduleDrain();
+        }
+
+        /* Resume once half the queue has gone, rather than toggling on every message. */
+        if (paused && queueDepth <= maximumQueued / 2) {
+            paused = false;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Schedule a drain for when the next token will be available, if not already scheduled.
+     */
+    private void scheduleDrain() {
+        if (drainFuture == null && channel.isActive()) {
+            long delay = (long) Math.ceil(Math.max(0, 1 - tokens) / rate);
+            drainFuture = channel.eventLoop().schedule(this::drain, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Add tokens for the time elapsed since the last refill.
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate);
+        lastRefill = now;
+    }
+
+    /**
+     * Consume a token if the container requires one.
+     *
+     * @param container container about to be sent
+     */
+    private void take(Container container) {
+        if (isFlowMod(container)) {
+            tokens -= 1;
+        }
+    }
+
+    /**
+     * Discard anything queued, used when the switch has gone.
+     */
+    synchronized void close() {
+        if (drainFuture != null) {
+            drainFuture.cancel(false);
+            drainFuture = null;
+        }
+
+        for (Segment segment : segments) {
+            segment.release();
+        }
+
+        segments.clear();
+        queueDepth = 0;
+        paused = false;
+    }
+
+    /**
+     * Get the number of messages currently waiting to be sent to the switch.
+     *
+     * @return number of queued messages
+     */
+    synchronized int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Get the highest number of messages which have waited to be sent to the switch at once.
+     *
+     * @return highest number of queued messages
+     */
+    synchronized int getMaximumQueueDepth() {
+        return maximumQueueDepth;
+    }
+
+    /**
+     * Get the number of messages which have been delayed by pacing.
+     *
+     * @return number of delayed messages
+     */
+    synchronized long getDelayedCount() {
+        return delayedCount;
+    }
+
+    /**
+     * Check if a container holds a FLOW_MOD, alone or added to a bundle, the only messages which are paced.
+     *
+     * @param container container to check
+     * @return true if the container holds a FLOW_MOD
+     */
+    private static boolean isFlowMod(Container container) {
+        return container.getMessageType() == Type.OFPT_FLOW_MOD || container.getMessageType() == Type.OFPT_BUNDLE_ADD_MESSAGE;
+    }
+
+    /**
+     * Check if a container ends a segment, which nothing queued may be moved across.
+     *
+     * @param container container to check
+     * @return true if the container is a BARRIER_REQUEST or BUNDLE_CONTROL
+     */
+    private static boolean isSegmentEnd(Container container) {
+        return container.getMessageType() == Type.OFPT_BARRIER_REQUEST || container.getMessageType() == Type.OFPT_BUNDLE_CONTROL;
+    }
+
+    /**
+     * Check if a container holds a FLOW_MOD DELETE, alone or added to a bundle.
+     *
+     * @param container container to check
+     * @return true if the container holds a FLOW_MOD DELETE or DELETE_STRICT
+     */
+    private static boolean isDelete(Container container) {
+        int command = container.getFlowModCommand();
+
+        if (container.getMessageType() == Type.OFPT_BUNDLE_ADD_MESSAGE) {
+            /* The bundler only adds FLOW_MODs, of the bundle's own version. */
+            byte[] data = container.getData();
+            int offset = BUNDLE_ADD_MESSAGE_HEADER + FLOW_MOD_COMMAND_OFFSET;
+            command = data.length > offset && data[BUNDLE_ADD_MESSAGE_HEADER + 1] == Type.OFPT_FLOW_MOD.getId() ? data[offset] & 0xff : -1;
+        }
+
+        return command == FLOW_MOD_DELETE || command == FLOW_MOD_DELETE_STRICT;
+    }
+
+    /**
+     * Messages between two BARRIER_REQUESTs, which may be sent to the switch in any order.
+     */
+    private static class Segment {
+        /** Queued DELETEs, when prioritised. */
+        private Queue<Container> deletes = new ArrayDeque<>();
+        /** All other queued messages, in order of arrival. */
+        private Queue<Container> others = new ArrayDeque<>();
+        /** BARRIER_REQUEST or BUNDLE_CONTROL terminating this segment, or null if the segment is still open. */
+        private Container barrier;
+
+        /**
+         * Release everything in the segment, as it will not be sent.
+         */
+        private void release() {
+            for (Container container : deletes) {
+                container.release();
+            }
+
+            for (Container container : others) {
+                container.release();
+            }
+
+            if (barrier != null) {
+                barrier.release();
+            }
+        }
+    }
+}
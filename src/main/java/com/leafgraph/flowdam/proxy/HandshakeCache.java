@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.proxy;
+
+import com.leafgraph.flowdam.openflow.Container;
+import com.leafgraph.flowdam.openflow.Type;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * HandshakeCache keeps the handshake messages a switch sent when it first connected, so that a controller connecting
+ * later can be answered without the switch being asked again. The HELLO (including its version bitmap),
+ * FEATURES_REPLY, GET_CONFIG_REPLY and PORT_DESC multipart reply are held as received.
+ *
+ * Anything the switch could since have changed is forgotten: the configuration on SET_CONFIG, the port descriptions
+ * on PORT_STATUS (and, on OpenFlow 1.0, the FEATURES_REPLY which carries the ports). The next request is then sent to
+ * the switch and its reply cached again.
+ */
+class HandshakeCache {
+    /** Multipart type of PORT_DESC, which only exists from OpenFlow 1.3. */
+    private static final int PORT_DESC = 13;
+
+    /** HELLO received from the switch. */
+    private Container hello;
+    /** FEATURES_REPLY received from the switch. */
+    private Container featuresReply;
+    /** GET_CONFIG_REPLY received from the switch. */
+    private Container configReply;
+    /** Every part of the PORT_DESC multipart reply received from the switch, or null if not complete. */
+    private List<Container> portDescReply;
+    /** Parts of a PORT_DESC multipart reply still being received. */
+    private List<Container> portDescPending = new ArrayList<>();
+
+    /**
+     * Record a message from the switch if it is part of the handshake, or forget anything it makes stale.
+     *
+     * @param container container received from the switch
+     */
+    void update(Container container) {
+        Type type = container.getMessageType();
+
+        if (type == Type.OFPT_HELLO) {
+            hello = replace(hello, container.copy());
+        } else if (type == Type.OFPT_FEATURES_REPLY) {
+            featuresReply = replace(featuresReply, container.copy());
+        } else if (type == Type.OFPT_GET_CONFIG_REPLY) {
+            configReply = replace(configReply, container.copy());
+        } else if (type == Type.OFPT_PORT_STATUS) {
+            release(portDescReply);
+            portDescReply = null;
+            release(portDescPending);
+
+            if (container.getHeader().getVersion() == OFVersion.OF_10.getWireVersion()) {
+                featuresReply = replace(featuresReply, null);
+            }
+        } else if (container.isMultipartReply() && container.getMultipartType() == PORT_DESC) {
+            /* A part with a new transaction ID starts a new reply, abandoning any incomplete one. */
+            if (!portDescPending.isEmpty() && portDescPending.get(0).getHeader().getTransactionId() != container.getHeader().getTransactionId()) {
+                release(portDescPending);
+            }
+
+            portDescPending.add(container.copy());
+
+            if (!container.isMultipartMore()) {
+                release(portDescReply);
+                portDescReply = portDescPending;
+                portDescPending = new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * Forget anything made stale by a message a controller is sending to the switch.
+     *
+     * @param container container being sent to the switch
+     */
+    void sent(Container container) {
+        if (container.getMessageType() == Type.OFPT_SET_CONFIG) {
+            configReply = replace(configReply, null);
+        }
+    }
+
+    /**
+     * Answer a request from a controller using the cache.
+     *
+     * @param request container received from a controller
+     * @return replies carrying the request's transaction ID, or null if the request cannot be answered from the cache
+     */
+    List<Container> answer(Container request) {
+        Type type = request.getMessageType();
+
+        if (type == Type.OFPT_FEATURES_REQUEST && featuresReply != null) {
+            return Collections.singletonList(reply(featuresReply, request));
+        }
+
+        if (type == Type.OFPT_GET_CONFIG_REQUEST && configReply != null) {
+            return Collections.singletonList(reply(configReply, request));
+        }
+
+        if (request.isMultipartRequest() && request.getMultipartType() == PORT_DESC && portDescReply != null) {
+            List<Container> replies = new ArrayList<>(portDescReply.size());
+
+            for (Container part : portDescReply) {
+                replies.add(reply(part, request));
+            }
+
+            return replies;
+        }
+
+        return null;
+    }
+
+    /**
+     * Replace a cached message, releasing the copy held of the old one.
+     *
+     * @param cached cached message, or null if none
+     * @param replacement message to cache in its place, or null to forget it
+     * @return the replacement
+     */
+    private static Container replace(Container cached, Container replacement) {
+        if (cached != null) {
+            cached.release();
+        }
+
+        return replacement;
+    }
+
+    /**
+     * Release the copies held of cached messages, emptying the list.
+     *
+     * @param cached cached messages, or null if none
+     */
+    private static void release(List<Container> cached) {
+        if (cached != null) {
+            for (Container container : cached) {
+                container.release();
+            }
+
+            cached.clear();
+        }
+    }
+
+    /**
+     * Copy a cached reply for a request.
+     *
+     * @param cached cached reply
+     * @param request request being answered
+     * @return copy of the reply carrying the request's transaction ID
+     */
+    private static Container reply(Container cached, Container request) {
+        Container reply = cached.copy();
+        reply.setTransactionId(request.getHeader().getTransactionId());
+        return reply;
+    }
+
+    /**
+     * Get the HELLO received from the switch.
+     *
+     * @return HELLO from the switch, or null if not yet received
+     */
+    Container getHello() {
+        return hello;
+    }
+
+    /**
+     * Check if a FEATURES_REPLY has been received from the switch.
+     *
+     * @return true if a FEATURES_REQUEST can be answered from the cache
+     */
+    boolean hasFeaturesReply() {
+        return featuresReply != null;
+    }
+}
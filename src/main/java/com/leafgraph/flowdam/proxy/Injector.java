@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.proxy;
+
+import com.leafgraph.flowdam.openflow.Container;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import org.projectfloodlight.openflow.protocol.OFBadRequestCode;
+import org.projectfloodlight.openflow.protocol.OFFactories;
+import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.types.OFErrorCauseData;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Injector represents a local client submitting OpenFlow messages to switches through the proxy, bypassing the
+ * controllers. Every message to and from the client is framed by the 8 byte datapath ID of the switch it concerns.
+ *
+ * Replies from the switch are returned to the Injector rather than a controller. Messages still being written to
+ * switches are counted, and reading from the client stops while too many are, so a client pushing faster than the
+ * switches can accept is held back rather than buffered without limit.
+ */
+public class Injector implements ChannelFutureListener {
+    /** Number of bytes of a refused message included in the error returned. */
+    private static final int ERROR_DATA_LENGTH = 64;
+
+    /** ID of this Injector, negative so it is never mistaken for a controller. */
+    private int id;
+    /** Netty channel to the client. */
+    private Channel channel;
+    /** Maximum number of messages being written to switches before reading from the client stops. */
+    private int maximumPending;
+    /** Number of messages being written to switches. */
+    private AtomicInteger pending = new AtomicInteger(0);
+
+    /**
+     * Construct a new Injector.
+     *
+     * @param id negative ID, never -1
+     * @param channel channel to the client
+     * @param maximumPending maximum number of messages being written to switches before reading stops
+     */
+    Injector(int id, Channel channel, int maximumPending) {
+        this.id = id;
+        this.channel = channel;
+        this.maximumPending = maximumPending;
+    }
+
+    /**
+     * Get the ID of this Injector.
+     *
+     * @return negative ID
+     */
+    int getId() {
+        return id;
+    }
+
+    /**
+     * Record a message being written to a switch, stopping reading from the client if too many are pending.
+     *
+     * @param future future of the write to the switch
+     */
+    void sent(ChannelFuture future) {
+        if (pending.incrementAndGet() >= maximumPending) {
+            channel.config().setAutoRead(false);
+        }
+
+        future.addListener(this);
+    }
+
+    @Override
+    public void operationComplete(ChannelFuture future) {
+        /* Resume once half the pending messages have gone, rather than toggling on every write. */
+        if (pending.decrementAndGet() <= maximumPending / 2 && !channel.config().isAutoRead()) {
+            channel.config().setAutoRead(true);
+        }
+    }
+
+    /**
+     * Return a message from a switch to the client.
+     *
+     * @param datapathId datapath ID of the switch
+     * @param container the message from the switch
+     */
+    void reply(long datapathId, Container container) {
+        ByteBuf byteBuf = channel.alloc().buffer(8 + container.getLength());
+        byteBuf.writeLong(datapathId);
+        container.writeTo(byteBuf);
+
+        channel.writeAndFlush(byteBuf);
+    }
+
+    /**
+     * Return an error to the client for a message which could not be sent, as the switch is not connected or has not
+     * completed its handshake.
+     *
+     * @param datapathId datapath ID the message was for
+     * @param container the message which could not be sent
+     */
+    public void refuse(long datapathId, Container container) {
+        OFVersion version = container.getVersion();
+
+        if (version == null) {
+            /* There is no way to build an error the injector would understand. */
+            return;
+        }
+
+        byte[] data = Arrays.copyOf(container.getData(), Math.min(container.getData().length, ERROR_DATA_LENGTH));
+
+        OFMessage error = OFFactories.getFactory(version).errorMsgs().buildBadRequestErrorMsg()
+                .setXid(container.getHeader().getTransactionId())
+                .setCode(OFBadRequestCode.EPERM)
+                .setData(OFErrorCauseData.of(data, version))
+                .build();
+
+        ByteBuf byteBuf = channel.alloc().buffer();
+        byteBuf.writeLong(datapathId);
+        error.writeTo(byteBuf);
+
+        channel.writeAndFlush(byteBuf);
+    }
+}
@@ -17,24 +17,41 @@ package com.leafgraph.flowdam.proxy;
 
 import com.leafgraph.flowdam.openflow.Header;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
 import io.netty.util.ReferenceCountUtil;
+import org.projectfloodlight.openflow.protocol.OFBadRequestCode;
+import org.projectfloodlight.openflow.protocol.OFControllerRole;
 import org.projectfloodlight.openflow.protocol.OFEchoReply;
 import org.projectfloodlight.openflow.protocol.OFEchoRequest;
 import org.projectfloodlight.openflow.protocol.OFFactories;
 import org.projectfloodlight.openflow.protocol.OFFeaturesReply;
+import org.projectfloodlight.openflow.protocol.OFFlowMod;
+import org.projectfloodlight.openflow.protocol.OFFlowModFailedCode;
+import org.projectfloodlight.openflow.protocol.OFFlowRemoved;
 import org.projectfloodlight.openflow.protocol.OFHello;
+import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.projectfloodlight.openflow.protocol.OFRoleReply;
+import org.projectfloodlight.openflow.protocol.OFRoleRequest;
 import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.types.OFErrorCauseData;
 import com.leafgraph.flowdam.Flowdam;
 import com.leafgraph.flowdam.openflow.Container;
+import com.leafgraph.flowdam.openflow.Direction;
 import com.leafgraph.flowdam.openflow.Type;
 
-import java.util.ArrayDeque;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * ProxiedConnection encapsulates the relationship between two Netty channels, the switch incoming connection and
@@ -43,6 +60,19 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class ProxiedConnection {
     /** Echo data for our own echo requests/replies. */
     private static final byte[] ECHO_DATA = new byte[] { 0x53, 0x74, 0x6f, 0x70, 0x63, 0x6f, 0x63, 0x6b };
+    /** Number of bytes of an offending message included in errors created by the proxy. */
+    private static final int ERROR_DATA_LENGTH = 64;
+    /** Weight given to the latest sample when smoothing the message rate. */
+    private static final double RATE_SMOOTHING = 0.5;
+    /** Controller message types which the switch does not reply to when successful. */
+    private static final Set<Type> UNANSWERED_TYPES = EnumSet.of(Type.OFPT_ECHO_REPLY, Type.OFPT_ERROR);
+    /** Asynchronous switch message types spilled to disk once a controller's queue is full, rather than dropped. */
+    private static final Set<Type> SPILLED_TYPES = EnumSet.of(Type.OFPT_PACKET_IN, Type.OFPT_PORT_STATUS, Type.OFPT_FLOW_REMOVED);
+    /** Number of bytes of spilled messages replayed to a controller in each write. */
+    private static final int SPILL_REPLAY_LENGTH = 256 * 1024;
+    /** Controller message types a SLAVE controller may not send, as they change the state of the switch. */
+    private static final Set<Type> SLAVE_DENIED_TYPES = EnumSet.of(Type.OFPT_PACKET_OUT, Type.OFPT_FLOW_MOD,
+            Type.OFPT_GROUP_MOD, Type.OFPT_PORT_MOD, Type.OFPT_TABLE_MOD, Type.OFPT_METER_MOD);
 
     /** Owning Proxy. */
     private Proxy owningProxy;
@@ -50,29 +80,56 @@ public class ProxiedConnection {
     private int uniqueId;
     /** Datapath ID */
     private byte[] datapathId;
+    /** Datapath ID as a number. */
+    private long datapathIdLong;
     /** Datapath ID String Representation. */
     private String datapathIdString;
     /** Netty channel used for the switch connection. */
     private Channel upstream;
     /** Upstream version. */
     private OFVersion upstreamVersion;
-    /** Netty channel used for the controller connection. */
-    private Channel downstream;
-    /** Downstream version. */
-    private OFVersion downstreamVersion;
-    /** Flag to specify if the downstream connection has reached channelActive. */
-    private boolean downstreamActive = false;
-    /** Queue for outgoing packets to controller which could not yet be sent. */
-    private Queue<Container> downstreamQueue = new ArrayDeque<>();
-
-    /** Statistics on number of messages types received from upstream. */
-    private Map<Type, AtomicInteger> upstreamReceived = new HashMap<>();
-    /** Statistics on number of messages types received from downstream. */
-    private Map<Type, AtomicInteger> downstreamReceived = new HashMap<>();
+    /** Connections to controllers, in the order they were registered. */
+    private List<ControllerConnection> controllers = new ArrayList<>();
+    /** Source of IDs for controller connections. */
+    private int controllerIdSource = 0;
+    /** Flag to specify if a controller HELLO has been sent to the switch, as the switch only expects one. */
+    private boolean switchHelloSent = false;
+    /** Transaction IDs assigned by the proxy to requests sent to the switch, mapped to the original requester. */
+    private XidTable transactions;
+    /** Source of transaction IDs assigned by the proxy. */
+    private long transactionIdSource = 0;
+    /** Handshake received from the switch, used to answer controllers without asking the switch again. */
+    private HandshakeCache handshakeCache = new HandshakeCache();
+
+    /** Statistics on number of messages types received from upstream, by Type ordinal. */
+    private AtomicLongArray upstreamReceived = new AtomicLongArray(Type.values().length);
+    /** Statistics on number of messages types received from downstream, by Type ordinal. */
+    private AtomicLongArray downstreamReceived = new AtomicLongArray(Type.values().length);
 
     /** Flag to specify if after the FEATURES_REPLY message received. (= handshake completed.) */
     private boolean readyForInjectMessage = false;
 
+    /** Index of flows installed on the switch, or null if duplicate FLOW_MODs are not suppressed. */
+    private FlowModDeduplicator flowModDeduplicator;
+    /** Tracker of BARRIER_REQUESTs in flight to the switch. */
+    private BarrierTracker barrierTracker = new BarrierTracker();
+    /** Pacer of FLOW_MODs sent to the switch, or null if FLOW_MODs are not paced. */
+    private FlowModPacer flowModPacer;
+    /** Bundler of FLOW_MODs sent to the switch, or null if FLOW_MODs are not bundled. */
+    private FlowModBundler flowModBundler;
+
+    /** Flag to specify if a batch of messages is being received, during which writes are not flushed. */
+    private boolean receivingBatch = false;
+    /** Channels written to while receiving the current batch, to be flushed once it has been processed. */
+    private List<Channel> unflushed = new ArrayList<>(2);
+
+    /** Number of messages received from the switch and controllers. */
+    private long messageCount = 0;
+    /** Number of messages received when the rate was last sampled. */
+    private long sampledMessageCount = 0;
+    /** Smoothed messages per second received, as last sampled. */
+    private double messageRate = 0;
+
     /**
      * Construct a new ProxiedConnection with a unique ID for reference and log tracking.
      *
@@ -83,11 +140,11 @@ public class ProxiedConnection {
         owningProxy = proxy;
         this.uniqueId = uniqueId;
         setDatapathId(new byte[8]);
+        ProxySettings settings = proxy.getSettings();
+        transactions = new XidTable(settings.getMaximumTransactions(), settings.getTransactionTimeout());
 
-        /* Add zero'd statistics. */
-        for (Type type : Type.values()) {
-            upstreamReceived.put(type, new AtomicInteger(0));
-            downstreamReceived.put(type, new AtomicInteger(0));
+        if (settings.isSuppressDuplicateFlowMods()) {
+            flowModDeduplicator = new FlowModDeduplicator(settings.getDuplicateFlowModEntries(), settings.getDuplicateFlowModLifetime());
         }
     }
 
@@ -99,64 +156,250 @@ public class ProxiedConnection {
     public synchronized void registerUpstream(Channel upstreamChannel) {
         upstream = upstreamChannel;
         log(" Incoming Upstream Switch Connected: " + upstream.remoteAddress());
+
+        ProxySettings settings = owningProxy.getSettings();
+
+        if (settings.getFlowModRate() > 0) {
+            flowModPacer = new FlowModPacer(upstream, settings.getFlowModRate(), settings.getFlowModBurst(), settings.isPrioritizeFlowModDeletes(),
+                    settings.getMaximumPacedMessages(), this::setControllersReading);
+        }
+
+        if (settings.isBundleFlowMods()) {
+            flowModBundler = new FlowModBundler(this::sendCommand, container -> assignTransactionId(FlowModBundler.PROXY_REQUESTER, container),
+                    this::scheduleBundleCommit, settings.getMaximumBundleMessages());
+        }
+    }
+
+    /**
+     * Begin connecting to every controller, messages from the switch are queued for each until it has connected.
+     */
+    public void connectControllers() {
+        List<ControllerConnection> created = new ArrayList<>();
+        int count = owningProxy.getSettings().getControllers().size();
+
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                ControllerConnection controller = new ControllerConnection(i);
+                controllers.add(controller);
+                created.add(controller);
+            }
+        }
+
+        for (ControllerConnection controller : created) {
+            connect(controller);
+        }
+    }
+
+    /**
+     * Connect a controller connection to the controller address it is using.
+     *
+     * @param controller controller connection to connect
+     */
+    private void connect(ControllerConnection controller) {
+        Channel upstreamChannel;
+        InetSocketAddress controllerAddress;
+
+        synchronized (this) {
+            if (upstream == null || !controllers.contains(controller)) {
+                return;
+            }
+
+            upstreamChannel = upstream;
+            controllerAddress = owningProxy.getSettings().getControllerAddress(controller.getAddressIndex());
+        }
+
+        /* Called without our lock held, the proxy takes its own lock and then ours to register the channel. */
+        owningProxy.connectDownstream(upstreamChannel, controller, controllerAddress);
     }
 
     /**
-     * Register the downstream channel against this proxied connection.
+     * Register a downstream channel against a controller connection of this proxied connection.
      *
      * @param downstreamChannel downstream channel to register
+     * @param controller controller connection the channel is for
+     */
+    synchronized void registerDownstream(Channel downstreamChannel, ControllerConnection controller) {
+        if (!controllers.contains(controller)) {
+            /* Failover gave up while the connection was being made. */
+            downstreamChannel.close();
+            return;
+        }
+
+        controller.attach(++controllerIdSource, downstreamChannel);
+        log(" Outgoing Downstream Controller Connecting: " + owningProxy.getSettings().getControllerAddress(controller.getAddressIndex()));
+    }
+
+    /**
+     * Mark a downstream channel as active, this should be called once channelActive has been called by Netty, it will
+     * result in the release of any queued packets which have been buffered from the upstream. A channel connected by
+     * failover is first given the switch's handshake from the cache.
+     *
+     * @param downstreamChannel downstream channel which is now active
      */
-    public synchronized void registerDownstream(Channel downstreamChannel) {
-        downstream = downstreamChannel;
-        log(" Outgoing Upstream Switch Connecting");
+    public synchronized void activeDownstream(Channel downstreamChannel) {
+        ControllerConnection controller = getController(downstreamChannel);
+
+        if (controller == null) {
+            return;
+        }
+
+        log(" Outgoing Downstream Controller Connected: " + downstreamChannel.remoteAddress());
+
+        Container hello = handshakeCache.getHello();
+
+        if (controller.getFailoverStarted() != 0 && hello != null) {
+            /* The switch's HELLO may have gone to the previous channel, so replay it ahead of anything queued. */
+            owningProxy.releaseQueuedBytes(controller.removeQueued(queued -> queued.getUnsignedByte(1) == Type.OFPT_HELLO.getId()));
+            /* The cache keeps its own reference to the HELLO, the channel releases the one it is given. */
+            write(downstreamChannel, hello.retain());
+
+            if (handshakeCache.hasFeaturesReply()) {
+                /* Hold the queue back until the controller has asked for, and been given, the switch's features. */
+                controller.setReplayingHandshake(true);
+                return;
+            }
+        }
+
+        activate(controller);
     }
 
     /**
-     * Mark the downstream channel as active, this should be called once channelActive has been called by Netty, it will
-     * result in the release of any queued packets which have been buffered from the upstream.
+     * Allow messages to be written to a controller, releasing anything queued for it.
+     *
+     * @param controller controller connection which may now be written to
      */
-    public synchronized void activeDownstream() {
-        downstreamActive = true;
-        log(" Outgoing Downstream Controller Connected: " + downstream.remoteAddress());
+    private void activate(ControllerConnection controller) {
+        controller.setActive();
+        controller.setReplayingHandshake(false);
+
+        if (controller.getFailoverStarted() != 0) {
+            log(" Controller " + controller.getId() + " Failed Over In " + (System.currentTimeMillis() - controller.getFailoverStarted()) + "ms");
+            controller.setFailoverStarted(0);
+            controller.setFailoverAttempts(0);
+        }
+
+        int dropped = controller.takeDroppedCount();
 
-        Container container;
-        /* Purge any queued containers. */
-        while ((container = downstreamQueue.poll()) != null) {
-            downstream.writeAndFlush(container);
+        if (dropped > 0) {
+            log(" Controller " + controller.getId() + " Missed " + dropped + " Messages While Unavailable");
+        }
+
+        Channel downstreamChannel = controller.getChannel();
+        int queuedBytes = controller.getQueuedBytes();
+        /* Purge anything queued, in a single write. */
+        ByteBuf queued = controller.drainQueue(downstreamChannel.alloc());
+
+        if (queued != null) {
+            owningProxy.releaseQueuedBytes(queuedBytes);
+            write(downstreamChannel, queued);
+        }
+
+        /* Anything spilled follows, a piece at a time as the controller reads it. */
+        if (controller.getSpill() != null && !controller.getSpill().isEmpty()) {
+            log(" Controller " + controller.getId() + " Replaying " + controller.getSpill().getMessageCount() + " Spilled Messages");
+            replaySpill(controller, downstreamChannel);
         }
     }
 
     /**
      * Unregister the upstream from this proxied connection. As OpenFlow has no ability to resolve state once a
-     * connection has come or gone this must also close the downstream connection if there is one.
+     * connection has come or gone this must also close the downstream connections if there are any.
      */
     public synchronized void unregisterUpstream() {
         upstream = null;
         readyForInjectMessage = false;
 
+        if (flowModPacer != null) {
+            flowModPacer.close();
+        }
+
+        if (flowModBundler != null) {
+            flowModBundler.close();
+        }
+
         log(" Incoming Upstream Switch Disconnected");
 
-        if (downstream != null) {
-            downstream.close();
+        for (ControllerConnection controller : controllers) {
+            if (controller.getChannel() != null) {
+                controller.getChannel().close();
+            } else {
+                /* Failing over, it will not connect now the switch has gone, so what it was holding is discarded. */
+                owningProxy.releaseQueuedBytes(controller.clearQueue());
+                closeSpill(controller);
+            }
         }
     }
 
     /**
-     * Unregister the downstream from this proxied connection. As OpenFlow has no ability to resolve state once a
-     * connection has come or gone this must also close the upstream connection if there is one.
+     * Unregister a downstream from this proxied connection. If failover is enabled the controller connection is kept,
+     * queueing messages from the switch, while the next controller address is connected to. Otherwise, or once
+     * failover has timed out, the last controller having gone leaves nothing to control the switch, as OpenFlow has no
+     * ability to resolve state once a connection has come or gone this must then also close the upstream connection.
+     *
+     * @param downstreamChannel downstream channel to unregister
      */
-    public synchronized void unregisterDownstream() {
-        downstream = null;
-        downstreamActive = false;
-        readyForInjectMessage = false;
+    public synchronized void unregisterDownstream(Channel downstreamChannel) {
+        ControllerConnection controller = getController(downstreamChannel);
+
+        if (controller == null) {
+            return;
+        }
 
-        log(" Outgoing Downstream Controller Disconnected");
+        log(" Outgoing Downstream Controller Disconnected: " + downstreamChannel.remoteAddress());
 
-        if (upstream != null) {
-            upstream.close();
+        long failoverTimeout = owningProxy.getSettings().getFailoverTimeout();
+
+        if (upstream != null && failoverTimeout > 0) {
+            long now = System.currentTimeMillis();
+
+            if (controller.getFailoverStarted() == 0) {
+                controller.setFailoverStarted(now);
+            }
+
+            if (now - controller.getFailoverStarted() < failoverTimeout) {
+                /* Replies still owed to the old channel will find no owner and be dropped. */
+                controller.detach();
+                scheduleFailover(controller);
+                return;
+            }
+
+            log(" Controller Failover Timed Out");
+        }
+
+        /* Replies still owed to the controller will find no owner and be dropped. */
+        controllers.remove(controller);
+        owningProxy.releaseQueuedBytes(controller.clearQueue());
+        closeSpill(controller);
+
+        if (controllers.isEmpty()) {
+            readyForInjectMessage = false;
+
+            if (upstream != null) {
+                upstream.close();
+            }
         }
     }
 
+    /**
+     * Schedule a controller connection to connect to the next controller address. Every address is tried straight
+     * away once, after which attempts back off.
+     *
+     * @param controller controller connection to fail over
+     */
+    private void scheduleFailover(final ControllerConnection controller) {
+        int attempts = controller.getFailoverAttempts();
+        ProxySettings settings = owningProxy.getSettings();
+        int addresses = settings.getControllerAddressCount();
+
+        controller.setFailoverAttempts(attempts + 1);
+        controller.setAddressIndex((controller.getAddressIndex() + 1) % addresses);
+
+        long delay = attempts < addresses ? 0 : settings.getFailoverRetryDelay() << Math.min(attempts - addresses, 10);
+        log(" Failing Over To " + settings.getControllerAddress(controller.getAddressIndex()) + " In " + delay + "ms");
+
+        upstream.eventLoop().schedule(() -> connect(controller), delay, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * Construct a suitable OpenFlow echo request based upon the OpenFlow version the upstream channel advertised
      * version.
@@ -164,19 +407,28 @@ public class ProxiedConnection {
      * @return Container with a suitable echo request
      */
     public Container createPing() {
-        ByteBuf byteBuf = upstream.alloc().buffer(8);
         OFEchoRequest request = OFFactories.getFactory(upstreamVersion).echoRequest(ECHO_DATA);
-        request.writeTo(byteBuf);
+        return createContainer(request);
+    }
 
-        byte[] rawData = new byte[byteBuf.readableBytes()];
+    /**
+     * Construct a Container holding an OpenFlow message created by the proxy.
+     *
+     * @param message the message to encapsulate
+     * @return Container with the message and its raw data
+     */
+    private Container createContainer(OFMessage message) {
+        ByteBuf byteBuf = Unpooled.buffer();
+        message.writeTo(byteBuf);
 
-        byteBuf.resetReaderIndex();
+        byte[] rawData = new byte[byteBuf.readableBytes()];
         byteBuf.readBytes(rawData);
 
         ReferenceCountUtil.release(byteBuf);
 
-        Header header = new Header((short) upstreamVersion.getWireVersion(), (short) Type.OFPT_ECHO_REQUEST.getId(), 8, request.getXid());
-        return new Container(header, rawData, Type.OFPT_ECHO_REQUEST, request);
+        short typeId = (short) (rawData[1] & 0xff);
+        Header header = new Header((short) message.getVersion().getWireVersion(), typeId, rawData.length, message.getXid());
+        return new Container(header, rawData, Type.getById(header.getVersion(), typeId), message);
     }
 
     /**
@@ -187,7 +439,65 @@ public class ProxiedConnection {
      */
     public synchronized void receive(Channel incoming, Container container) {
         ProxyChannelType channelSource = (incoming == upstream ? ProxyChannelType.SWITCH : ProxyChannelType.CONTROLLER);
-        ProxyChannelType channelDestination = (incoming != upstream ? ProxyChannelType.SWITCH : ProxyChannelType.CONTROLLER);
+        ControllerConnection controller = (channelSource == ProxyChannelType.CONTROLLER ? getController(incoming) : null);
+
+        if (channelSource == ProxyChannelType.CONTROLLER && controller == null) {
+            /* The controller has already been unregistered. */
+            container.release();
+            return;
+        }
+
+        process(channelSource, controller, container);
+    }
+
+    /**
+     * Receive a batch of containers read from a channel together, processing them in order under a single lock with
+     * every channel written to flushed once at the end.
+     *
+     * @param incoming the channel the containers were received upon
+     * @param containers the containers being received, which are not kept
+     */
+    public synchronized void receive(Channel incoming, List<Container> containers) {
+        ProxyChannelType channelSource = (incoming == upstream ? ProxyChannelType.SWITCH : ProxyChannelType.CONTROLLER);
+        ControllerConnection controller = (channelSource == ProxyChannelType.CONTROLLER ? getController(incoming) : null);
+
+        if (channelSource == ProxyChannelType.CONTROLLER && controller == null) {
+            /* The controller has already been unregistered. */
+            for (Container container : containers) {
+                container.release();
+            }
+
+            return;
+        }
+
+        receivingBatch = true;
+
+        try {
+            for (Container container : containers) {
+                process(channelSource, controller, container);
+            }
+        } finally {
+            receivingBatch = false;
+
+            for (Channel channel : unflushed) {
+                channel.flush();
+            }
+
+            unflushed.clear();
+        }
+    }
+
+    /**
+     * Process a container, forwarding it onwards if required.
+     *
+     * @param channelSource where the container came from
+     * @param controller the controller the container came from, or null if it came from the switch
+     * @param container the container being received
+     */
+    private void process(ProxyChannelType channelSource, ControllerConnection controller, Container container) {
+        messageCount++;
+
+        ProxyChannelType channelDestination = (channelSource == ProxyChannelType.CONTROLLER ? ProxyChannelType.SWITCH : ProxyChannelType.CONTROLLER);
 
         /* Intercept echo replies which are destined for the proxy, and as such shouldn't be forwarded. */
         if (container.getMessageType() == Type.OFPT_ECHO_REPLY) {
@@ -205,7 +515,14 @@ public class ProxiedConnection {
             if (channelSource == ProxyChannelType.SWITCH) {
                 upstreamVersion = ofHello.getVersion();
             } else {
-                downstreamVersion = ofHello.getVersion();
+                controller.setVersion(ofHello.getVersion());
+
+                /* The switch expects a single HELLO, any further controllers have already had the switch's. */
+                if (switchHelloSent) {
+                    channelDestination = ProxyChannelType.PROXY;
+                }
+
+                switchHelloSent = true;
             }
         }
 
@@ -213,17 +530,496 @@ public class ProxiedConnection {
         if (container.getMessageType() == Type.OFPT_FEATURES_REPLY) {
             OFFeaturesReply ofFeaturesReply = (OFFeaturesReply) container.getPacket();
             setDatapathId(ofFeaturesReply.getDatapathId().getBytes());
+
+            if (channelSource == ProxyChannelType.SWITCH) {
+                owningProxy.registerDatapath(ofFeaturesReply.getDatapathId().getLong(), this);
+            }
+        }
+
+        if (channelSource == ProxyChannelType.SWITCH) {
+            handshakeCache.update(container);
+        }
+
+        Container localReply = null;
+        List<Container> cachedReplies = null;
+
+        /* Arbitrate between controllers, the switch only sees the proxy as a single controller. */
+        if (channelSource == ProxyChannelType.CONTROLLER && channelDestination == ProxyChannelType.SWITCH) {
+            /* The switch has already told us its handshake, so save it being asked again. */
+            cachedReplies = handshakeCache.answer(container);
+
+            if (cachedReplies != null) {
+                channelDestination = ProxyChannelType.PROXY;
+            } else if (container.getMessageType() == Type.OFPT_ROLE_REQUEST) {
+                localReply = handleRoleRequest(controller, (OFRoleRequest) container.getPacket());
+            } else if (controller.getRole() == OFControllerRole.ROLE_SLAVE && SLAVE_DENIED_TYPES.contains(container.getMessageType())) {
+                localReply = createBadRequestError(container, OFBadRequestCode.IS_SLAVE);
+            }
+
+            if (localReply != null) {
+                channelDestination = ProxyChannelType.PROXY;
+            }
+        }
+
+        if (flowModDeduplicator != null && channelDestination != ProxyChannelType.PROXY) {
+            if (channelSource == ProxyChannelType.CONTROLLER) {
+                if (container.getMessageType() == Type.OFPT_FLOW_MOD) {
+                    /* Absorb FLOW_MODs which would not change what is installed on the switch. */
+                    if (flowModDeduplicator.isDuplicate((OFFlowMod) container.getPacket(), System.currentTimeMillis())) {
+                        channelDestination = ProxyChannelType.PROXY;
+                    }
+                } else if (container.getMessageType() == Type.OFPT_BARRIER_REQUEST && barrierTracker.isQuiescent()) {
+                    /* The switch has processed everything it was sent, the BARRIER_REPLY can come from us. */
+                    channelDestination = ProxyChannelType.PROXY;
+                    localReply = createContainer(OFFactories.getFactory(container.getPacket().getVersion()).buildBarrierReply()
+                            .setXid(container.getHeader().getTransactionId()).build());
+                } else {
+                    flowModDeduplicator.commandSent(container);
+                }
+            } else {
+                if (container.getMessageType() == Type.OFPT_FLOW_REMOVED) {
+                    flowModDeduplicator.removed((OFFlowRemoved) container.getPacket());
+                } else if (container.getMessageType() == Type.OFPT_ERROR) {
+                    flowModDeduplicator.clear();
+                }
+            }
+        }
+
+        /* A BARRIER_REQUEST straight after another still in flight shares its reply, rather than stalling the switch again. */
+        if (owningProxy.getSettings().isCoalesceBarriers() && channelSource == ProxyChannelType.CONTROLLER && channelDestination == ProxyChannelType.SWITCH
+                && container.getMessageType() == Type.OFPT_BARRIER_REQUEST && barrierTracker.canCoalesce()) {
+            long[] forgotten = barrierTracker.coalesce(controller.getId(), container.getHeader().getTransactionId());
+            channelDestination = ProxyChannelType.PROXY;
+
+            if (forgotten != null) {
+                refuseCoalescedBarriers(container.getVersion(), forgotten);
+            }
+        }
+
+        /* Follow BARRIER_REPLYs so we know when the switch has caught up with the controller. */
+        long[] coalescedBarriers = null;
+
+        if (channelSource == ProxyChannelType.SWITCH && container.getMessageType() == Type.OFPT_BARRIER_REPLY) {
+            coalescedBarriers = barrierTracker.barrierReplied(container.getHeader().getTransactionId());
         }
 
         log(channelSource, channelDestination, container);
 
-        if (channelDestination != ProxyChannelType.PROXY) {
-            send(channelSource, channelDestination, container);
-            if(container.getMessageType() == Type.OFPT_FEATURES_REPLY) {
-                System.out.println("ready for inject: "+getDatapathIdString());
+        if (localReply != null) {
+            sendToController(ProxyChannelType.PROXY, controller, localReply);
+        }
+
+        if (cachedReplies != null) {
+            for (Container reply : cachedReplies) {
+                sendToController(ProxyChannelType.PROXY, controller, reply);
+            }
+        }
+
+        if (channelDestination == ProxyChannelType.PROXY) {
+            container.release();
+            return;
+        }
+
+        if (channelSource == ProxyChannelType.CONTROLLER) {
+            /* Give requests a transaction ID of our own and remember who asked, so the reply can find its way back. */
+            if (!UNANSWERED_TYPES.contains(container.getMessageType()) && !assignTransactionId(controller.getId(), container)) {
+                /* The reply could not be routed, so the request is refused rather than sent. */
+                if (flowModDeduplicator != null) {
+                    flowModDeduplicator.clear();
+                }
+
+                sendToController(ProxyChannelType.PROXY, controller, createBadRequestError(container, OFBadRequestCode.EPERM));
+                container.release();
+                return;
+            }
+
+            /* Follow BARRIER_REQUESTs by the transaction ID the switch will reply with. */
+            if (container.getMessageType() == Type.OFPT_BARRIER_REQUEST) {
+                barrierTracker.barrierSent(container.getHeader().getTransactionId());
+            } else {
+                barrierTracker.commandSent();
+            }
+
+            handshakeCache.sent(container);
+
+            sendToSwitch(channelSource, container);
+        } else {
+            /* The container may be written and released before routing returns, so must not be looked at after. */
+            Container[] coalescedReplies = (coalescedBarriers != null ? copyCoalescedBarrierReplies(container, coalescedBarriers) : null);
+            boolean featuresReply = (container.getMessageType() == Type.OFPT_FEATURES_REPLY);
+
+            routeFromSwitch(container);
+
+            if (coalescedReplies != null) {
+                answerCoalescedBarriers(coalescedReplies, coalescedBarriers);
+            }
+
+            if (featuresReply) {
+                log(" Switch Ready For Injection");
                 readyForInjectMessage = true;
+                owningProxy.handshakeComplete(this, upstream);
+            }
+        }
+    }
+
+    /**
+     * Forget the request a message from the switch replies to, as a filter has dropped the reply before it reached
+     * the proxy. Multipart replies keep the request until the last part, as when they are routed.
+     *
+     * @param container message from the switch which was dropped
+     */
+    public synchronized void replyDropped(Container container) {
+        Type type = container.getMessageType();
+
+        if (type == Type.OFPT_HELLO || (type != null && type.getDirection() == Direction.ASYNCHRONOUS)) {
+            return;
+        }
+
+        long transactionId = container.getHeader().getTransactionId();
+
+        if (type == Type.OFPT_BARRIER_REPLY) {
+            /* The switch has still caught up, only requests coalesced with the barrier go without a reply. */
+            barrierTracker.barrierReplied(transactionId);
+        }
+
+        if (!container.isMultipartReply() || !container.isMultipartMore()) {
+            transactions.remove(transactionId);
+        }
+    }
+
+    /**
+     * Answer a message from a controller which a filter has dropped with a BAD_REQUEST EPERM error, as messages from
+     * a SLAVE controller are refused.
+     *
+     * @param incoming channel the message arrived on
+     * @param container message which was dropped, not released here
+     */
+    public synchronized void refuse(Channel incoming, Container container) {
+        ControllerConnection controller = getController(incoming);
+
+        if (controller != null) {
+            sendToController(ProxyChannelType.PROXY, controller, createBadRequestError(container, OFBadRequestCode.EPERM));
+        }
+    }
+
+    /**
+     * Inject a message from an Injector to the switch. The message is given a transaction ID of the proxy's so that
+     * any reply returns to the Injector, and is written without flushing so that a batch may be flushed together.
+     *
+     * @param injector the Injector sending the message
+     * @param container the message to send
+     * @return the channel written to, which must be flushed, or null if the switch is not ready for injection or has
+     *         too many requests awaiting a reply
+     */
+    public synchronized Channel inject(Injector injector, Container container) {
+        if (!readyForInjectMessage || upstream == null) {
+            return null;
+        }
+
+        if (!UNANSWERED_TYPES.contains(container.getMessageType()) && !assignTransactionId(injector.getId(), container)) {
+            return null;
+        }
+
+        if (container.getMessageType() == Type.OFPT_BARRIER_REQUEST) {
+            barrierTracker.barrierSent(container.getHeader().getTransactionId());
+        } else {
+            barrierTracker.commandSent();
+        }
+
+        if (flowModDeduplicator != null) {
+            /* Injected messages are always sent, this only keeps the index of installed flows in step. */
+            if (container.getMessageType() == Type.OFPT_FLOW_MOD) {
+                flowModDeduplicator.isDuplicate((OFFlowMod) container.getPacket(), System.currentTimeMillis());
+            } else {
+                flowModDeduplicator.commandSent(container);
+            }
+        }
+
+        handshakeCache.sent(container);
+        log(ProxyChannelType.PROXY, ProxyChannelType.SWITCH, container);
+
+        injector.sent(upstream.write(container));
+
+        return upstream;
+    }
+
+    /**
+     * Route a container received from the switch to the controllers which should see it.
+     *
+     * @param container container received from the switch
+     */
+    private void routeFromSwitch(Container container) {
+        Type type = container.getMessageType();
+
+        /* HELLOs and asynchronous messages concern every controller. */
+        if (type == Type.OFPT_HELLO || (type != null && type.getDirection() == Direction.ASYNCHRONOUS)) {
+            sendToAllControllers(container);
+            return;
+        }
+
+        /* Anything else is a reply to whoever asked, or is for the controller in charge. */
+        long transactionId = container.getHeader().getTransactionId();
+        long requester = transactions.get(transactionId);
+        ControllerConnection controller = null;
+
+        if (requester != XidTable.NONE) {
+            /* Multipart replies keep the request pending until the last part. */
+            if (!container.isMultipartReply() || !container.isMultipartMore()) {
+                transactions.remove(transactionId);
+            }
+
+            int owner = (int) (requester >> 32);
+            container.setTransactionId(requester & 0xFFFFFFFFL);
+
+            if (owner == FlowModBundler.PROXY_REQUESTER) {
+                /* The request was the proxy's own, made when bundling FLOW_MODs. */
+                if (flowModBundler != null) {
+                    for (Container flowMod : flowModBundler.reply(container)) {
+                        reportBundleFailure(flowMod);
+                        flowMod.release();
+                    }
+                }
+
+                container.release();
+                return;
+            }
+
+            if (owner < 0) {
+                /* The request was injected, so the reply goes back to the injector if it is still connected. */
+                Injector injector = owningProxy.getInjector(owner);
+
+                if (injector != null) {
+                    injector.reply(datapathIdLong, container);
+                }
+
+                container.release();
+                return;
+            }
+
+            controller = getController(owner);
+
+            if (controller == null) {
+                /* The controller which asked has gone. */
+                container.release();
+                return;
+            }
+        }
+
+        if (controller == null) {
+            controller = getPrimaryController();
+        }
+
+        if (controller == null) {
+            container.release();
+            return;
+        }
+
+        if (type == Type.OFPT_ROLE_REPLY) {
+            handleRoleReply(controller, (OFRoleReply) container.getPacket());
+        }
+
+        sendToController(ProxyChannelType.SWITCH, controller, container);
+    }
+
+    /**
+     * Copy the BARRIER_REPLY from the switch for each BARRIER_REQUEST which was coalesced with the one replied to,
+     * each carrying the transaction ID of the request it answers.
+     *
+     * @param reply BARRIER_REPLY from the switch
+     * @param coalesced requester and original transaction ID pairs of the coalesced requests
+     * @return replies in the order of the pairs
+     */
+    private Container[] copyCoalescedBarrierReplies(Container reply, long[] coalesced) {
+        Container[] replies = new Container[coalesced.length / 2];
+
+        for (int i = 0; i < replies.length; i++) {
+            replies[i] = reply.copy();
+            replies[i].setTransactionId(coalesced[i * 2 + 1]);
+        }
+
+        return replies;
+    }
+
+    /**
+     * Answer the BARRIER_REQUESTs which were coalesced with one the switch has now replied to.
+     *
+     * @param replies BARRIER_REPLYs in the order of the pairs
+     * @param coalesced requester and original transaction ID pairs of the coalesced requests
+     */
+    private void answerCoalescedBarriers(Container[] replies, long[] coalesced) {
+        for (int i = 0; i < replies.length; i++) {
+            ControllerConnection controller = getController((int) coalesced[i * 2]);
+
+            if (controller != null) {
+                sendToController(ProxyChannelType.PROXY, controller, replies[i]);
+            } else {
+                replies[i].release();
+            }
+        }
+    }
+
+    /**
+     * Refuse BARRIER_REQUESTs which were coalesced with one too long outstanding to be remembered, so that their
+     * requesters are not left waiting for a reply which will never come.
+     *
+     * @param version version of the connection to the switch
+     * @param coalesced requester and original transaction ID pairs of the coalesced requests
+     */
+    private void refuseCoalescedBarriers(OFVersion version, long[] coalesced) {
+        log(" Too many outstanding BARRIER_REQUESTs, refusing " + coalesced.length / 2 + " coalesced with the oldest");
+
+        for (int i = 0; i < coalesced.length; i += 2) {
+            ControllerConnection controller = getController((int) coalesced[i]);
+
+            if (controller != null) {
+                Container request = createContainer(OFFactories.getFactory(version).buildBarrierRequest().setXid(coalesced[i + 1]).build());
+                sendToController(ProxyChannelType.PROXY, controller, createBadRequestError(request, OFBadRequestCode.EPERM));
+            }
+        }
+    }
+
+    /**
+     * Replace the transaction ID of a request sent to the switch with one assigned by the proxy, recording the
+     * original so that the reply can be returned to the requester. The ID is rewritten in place in the raw data. If
+     * too many requests await a reply the ID is left as it was, as the reply could not be returned.
+     *
+     * @param requester ID of the requester
+     * @param container request being sent to the switch
+     * @return true if the ID was replaced, false if the request must not be sent
+     */
+    private boolean assignTransactionId(int requester, Container container) {
+        transactionIdSource = (transactionIdSource + 1) & 0xFFFFFFFFL;
+
+        if (transactionIdSource == 0) {
+            transactionIdSource = 1;
+        }
+
+        long original = container.getHeader().getTransactionId();
+
+        if (!transactions.put(transactionIdSource, ((long) requester << 32) | original, System.currentTimeMillis())) {
+            log(" Too many outstanding requests, refusing " + container.getMessageType() + " " + original);
+            return false;
+        }
+
+        container.setTransactionId(transactionIdSource);
+        return true;
+    }
+
+    /**
+     * Process a ROLE_REQUEST from a controller. Only requests to become MASTER are sent to the switch, so that it may
+     * check the generation ID, other roles are recorded and answered by the proxy as the switch only ever sees a
+     * single controller.
+     *
+     * @param controller controller requesting the role
+     * @param request the ROLE_REQUEST
+     * @return ROLE_REPLY to answer the request with, or null if the request should be sent to the switch
+     */
+    private Container handleRoleRequest(ControllerConnection controller, OFRoleRequest request) {
+        OFControllerRole role = request.getRole();
+
+        if (role == OFControllerRole.ROLE_MASTER) {
+            return null;
+        }
+
+        if (role != OFControllerRole.ROLE_NOCHANGE) {
+            controller.setRole(role);
+            log(" Controller " + controller.getId() + " Role: " + role);
+        }
+
+        return createContainer(OFFactories.getFactory(request.getVersion()).buildRoleReply()
+                .setXid(request.getXid())
+                .setRole(controller.getRole())
+                .setGenerationId(request.getGenerationId())
+                .build());
+    }
+
+    /**
+     * Process a ROLE_REPLY from the switch, a controller which has become MASTER demotes any other MASTER to SLAVE.
+     *
+     * @param controller controller the reply is for
+     * @param reply the ROLE_REPLY
+     */
+    private void handleRoleReply(ControllerConnection controller, OFRoleReply reply) {
+        if (reply.getRole() != OFControllerRole.ROLE_MASTER) {
+            return;
+        }
+
+        for (ControllerConnection other : controllers) {
+            if (other != controller && other.getRole() == OFControllerRole.ROLE_MASTER) {
+                other.setRole(OFControllerRole.ROLE_SLAVE);
+                log(" Controller " + other.getId() + " Role: " + OFControllerRole.ROLE_SLAVE);
+            }
+        }
+
+        controller.setRole(OFControllerRole.ROLE_MASTER);
+        log(" Controller " + controller.getId() + " Role: " + OFControllerRole.ROLE_MASTER);
+    }
+
+    /**
+     * Construct the error a controller receives when the proxy refuses its message, such as a SLAVE controller
+     * attempting to change the state of the switch.
+     *
+     * @param container the message which was refused
+     * @param code reason the message was refused
+     * @return BAD_REQUEST error for the message
+     */
+    private Container createBadRequestError(Container container, OFBadRequestCode code) {
+        OFVersion version = container.getVersion();
+        byte[] data = Arrays.copyOf(container.getData(), Math.min(container.getData().length, ERROR_DATA_LENGTH));
+
+        return createContainer(OFFactories.getFactory(version).errorMsgs().buildBadRequestErrorMsg()
+                .setXid(container.getHeader().getTransactionId())
+                .setCode(code)
+                .setData(OFErrorCauseData.of(data, version))
+                .build());
+    }
+
+    /**
+     * Get the controller which should receive messages from the switch which are not replies, the MASTER if there is
+     * one otherwise the first controller.
+     *
+     * @return primary controller, or null if there are no controllers
+     */
+    private ControllerConnection getPrimaryController() {
+        for (ControllerConnection controller : controllers) {
+            if (controller.getRole() == OFControllerRole.ROLE_MASTER) {
+                return controller;
+            }
+        }
+
+        return controllers.isEmpty() ? null : controllers.get(0);
+    }
+
+    /**
+     * Look up the controller connection using its ID.
+     *
+     * @param id ID of the controller connection
+     * @return the controller connection, or null if it is no longer registered
+     */
+    private ControllerConnection getController(int id) {
+        for (ControllerConnection controller : controllers) {
+            if (controller.getId() == id) {
+                return controller;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Look up the controller connection using a channel.
+     *
+     * @param channel channel to the controller
+     * @return the controller connection, or null if the channel is not a registered controller
+     */
+    private ControllerConnection getController(Channel channel) {
+        for (ControllerConnection controller : controllers) {
+            if (controller.getChannel() == channel) {
+                return controller;
             }
         }
+
+        return null;
     }
 
     /**
@@ -235,31 +1031,337 @@ public class ProxiedConnection {
      * @param container the container to send
      */
     public synchronized void send(ProxyChannelType channelSource, Channel destination, Container container) {
-        ProxyChannelType channelDestination = (destination == upstream ? ProxyChannelType.SWITCH : ProxyChannelType.CONTROLLER);
-        send(channelSource, channelDestination, container);
+        if (destination == upstream) {
+            sendToSwitch(channelSource, container);
+        } else {
+            ControllerConnection controller = getController(destination);
+
+            if (controller != null) {
+                sendToController(channelSource, controller, container);
+            } else {
+                container.release();
+            }
+        }
     }
 
     /**
-     * Send a container out specifying the destination by a ChannelType.
+     * Send a container to the switch.
      *
      * @param channelSource channel type which is sending
-     * @param channelDestination channel type to send container to
      * @param container the container to send
      */
-    public synchronized void send(ProxyChannelType channelSource, ProxyChannelType channelDestination, Container container) {
-        // when send OFPT_HELLO controller to switch, may fire NullPointerException.
-        Channel outputChannel = channelDestination == ProxyChannelType.SWITCH ? upstream : downstream;
+    private void sendToSwitch(ProxyChannelType channelSource, Container container) {
+        if (channelSource == ProxyChannelType.PROXY) {
+            log(channelSource, ProxyChannelType.SWITCH, container);
+        }
+
+        if (upstream == null) {
+            container.release();
+            return;
+        }
+
+        /* Commands from the controller may be bundled before reaching the pacer. */
+        if (channelSource != ProxyChannelType.CONTROLLER) {
+            write(upstream, container);
+        } else if (flowModBundler != null) {
+            flowModBundler.send(container);
+        } else {
+            sendCommand(container);
+        }
+    }
+
+    /**
+     * Send a command to the switch, held back by the pacer if the switch is receiving them too fast.
+     *
+     * @param container the container to send
+     */
+    private void sendCommand(Container container) {
+        if (upstream == null) {
+            container.release();
+            return;
+        }
+
+        if (flowModPacer != null) {
+            flowModPacer.send(container);
+        } else {
+            write(upstream, container);
+        }
+    }
+
+    /**
+     * Pause or resume reading from every connected controller, used by the pacer to stop its queue growing without
+     * limit while the switch is sent FLOW_MODs slower than the controllers send them.
+     *
+     * @param reading true to resume reading, false to pause
+     */
+    private synchronized void setControllersReading(boolean reading) {
+        for (ControllerConnection controller : controllers) {
+            Channel channel = controller.getChannel();
+
+            if (channel != null && channel.config().isAutoRead() != reading) {
+                channel.config().setAutoRead(reading);
+            }
+        }
+    }
+
+    /**
+     * Write a message to a channel, flushing it straight away unless a batch is being received, in which case the
+     * channel is flushed once the whole batch has been processed.
+     *
+     * @param channel channel to write to
+     * @param message message to write
+     */
+    private void write(Channel channel, Object message) {
+        if (!receivingBatch) {
+            channel.writeAndFlush(message);
+            return;
+        }
+
+        channel.write(message);
+
+        if (!unflushed.contains(channel)) {
+            unflushed.add(channel);
+        }
+    }
+
+    /**
+     * Schedule the commit of a bundle of FLOW_MODs, in case no other message arrives to end it.
+     *
+     * @param bundleId ID of the bundle
+     */
+    private void scheduleBundleCommit(int bundleId) {
+        if (upstream != null) {
+            upstream.eventLoop().schedule(() -> expireBundle(bundleId), owningProxy.getSettings().getBundleCommitDelay(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Commit a bundle of FLOW_MODs if it is still open once its delay has passed.
+     *
+     * @param bundleId ID of the bundle
+     */
+    private synchronized void expireBundle(int bundleId) {
+        if (flowModBundler != null && upstream != null) {
+            flowModBundler.expire(bundleId);
+        }
+    }
+
+    /**
+     * Report a FLOW_MOD to its controller as failed, as the bundle it was in failed to commit. FLOW_MODs the switch
+     * has already reported an error for are no longer awaiting a reply, and are skipped.
+     *
+     * @param flowMod FLOW_MOD with the transaction ID assigned by the proxy
+     */
+    private void reportBundleFailure(Container flowMod) {
+        if (transactions.get(flowMod.getHeader().getTransactionId()) == XidTable.NONE) {
+            return;
+        }
 
+        OFVersion version = flowMod.getVersion();
+        byte[] data = Arrays.copyOf(flowMod.getData(), Math.min(flowMod.getData().length, ERROR_DATA_LENGTH));
+
+        routeFromSwitch(createContainer(OFFactories.getFactory(version).errorMsgs().buildFlowModFailedErrorMsg()
+                .setXid(flowMod.getHeader().getTransactionId())
+                .setCode(OFFlowModFailedCode.UNKNOWN)
+                .setData(OFErrorCauseData.of(data, version))
+                .build()));
+    }
+
+    /**
+     * Send a container to a controller, queueing it if the controller is not yet connected. While the handshake is
+     * being replayed to the controller only the proxy's own replies are sent, the FEATURES_REPLY completing it whether
+     * it came from the cache or the switch.
+     *
+     * @param channelSource channel type which is sending
+     * @param controller the controller to send to
+     * @param container the container to send
+     */
+    private void sendToController(ProxyChannelType channelSource, ControllerConnection controller, Container container) {
         if (channelSource == ProxyChannelType.PROXY) {
-            log(channelSource, channelDestination, container);
+            log(channelSource, ProxyChannelType.CONTROLLER, container);
         }
 
-        if (outputChannel!=null && ((outputChannel != downstream) || downstreamActive)) {
-            log(channelSource, channelDestination, container);
-            outputChannel.writeAndFlush(container);
+        if (!controller.isQueueing()) {
+            write(controller.getChannel(), container);
+        } else if (controller.isReplayingHandshake() && (channelSource == ProxyChannelType.PROXY || container.getMessageType() == Type.OFPT_FEATURES_REPLY)) {
+            /* The cached FEATURES_REPLY may have been forgotten (by a PORT_STATUS on OpenFlow 1.0), in which case the
+             * controller's FEATURES_REQUEST went to the switch and its reply completes the handshake instead. */
+            boolean featuresReply = (container.getMessageType() == Type.OFPT_FEATURES_REPLY);
+            write(controller.getChannel(), container);
+
+            if (featuresReply) {
+                activate(controller);
+            }
         } else {
-            downstreamQueue.add(container);
+            enqueue(controller, container);
+        }
+    }
+
+    /**
+     * Queue a container for a controller which is not yet connected, dropping it if the queue is full. The message is
+     * held encoded in a pooled direct buffer, and the container released.
+     *
+     * @param controller the controller to queue for
+     * @param container the container to queue
+     */
+    private void enqueue(ControllerConnection controller, Container container) {
+        ProxySettings settings = owningProxy.getSettings();
+
+        if (controller.getSpill() != null && !controller.getSpill().isEmpty()) {
+            /* Whatever the type, it must wait behind what has already been spilled. */
+            spill(controller, container, settings);
+            return;
+        }
+
+        int length = container.getLength();
+
+        if (controller.getQueuedMessages() >= settings.getMaximumQueuedMessages()
+                || controller.getQueuedBytes() + length > settings.getMaximumQueuedBytes()
+                || !owningProxy.reserveQueuedBytes(length)) {
+            if (settings.getSpillDirectory() != null && SPILLED_TYPES.contains(container.getMessageType())) {
+                spill(controller, container, settings);
+            } else {
+                controller.messageDropped();
+                container.release();
+            }
+
+            return;
+        }
+
+        ByteBuf encoded = PooledByteBufAllocator.DEFAULT.directBuffer(length);
+        container.writeTo(encoded);
+        container.release();
+
+        controller.queue(encoded);
+    }
+
+    /**
+     * Spill a container to disk for a controller which is not yet connected, dropping it if the spill file is full.
+     *
+     * @param controller the controller to spill for
+     * @param container the container to spill, which is released
+     * @param settings settings the container was queued under
+     */
+    private void spill(ControllerConnection controller, Container container, ProxySettings settings) {
+        try {
+            if (controller.getSpill() == null) {
+                controller.setSpill(new SpillFile(settings.getSpillDirectory(), settings.getMaximumSpillBytes()));
+            }
+
+            if (!controller.getSpill().append(container, System.currentTimeMillis())) {
+                controller.messageDropped();
+            }
+        } catch (IOException e) {
+            log(" Controller " + controller.getId() + " Spill Failed: " + e.getMessage());
+            controller.messageDropped();
+        } finally {
+            container.release();
+        }
+    }
+
+    /**
+     * Replay the next piece of what was spilled for a controller, the rest following once it has been written.
+     *
+     * @param controller the controller to replay to
+     * @param downstreamChannel the channel the replay started on, replay stops if it is no longer the controller's
+     */
+    private void replaySpill(ControllerConnection controller, Channel downstreamChannel) {
+        SpillFile spill = controller.getSpill();
+
+        if (spill == null || controller.getChannel() != downstreamChannel || !controller.isActive()) {
+            return;
+        }
+
+        ByteBuf replayed;
+
+        try {
+            replayed = spill.read(downstreamChannel.alloc(), SPILL_REPLAY_LENGTH, System.currentTimeMillis() - owningProxy.getSettings().getSpillPacketInLifetime());
+        } catch (IOException e) {
+            log(" Controller " + controller.getId() + " Spill Replay Failed: " + e.getMessage());
+            closeSpill(controller);
+            return;
+        }
+
+        if (replayed == null) {
+            int expired = spill.takeExpiredCount();
+
+            if (expired > 0) {
+                log(" Controller " + controller.getId() + " Missed " + expired + " Expired Spilled PACKET_INs");
+            }
+
+            return;
+        }
+
+        downstreamChannel.writeAndFlush(replayed).addListener(future -> {
+            if (future.isSuccess()) {
+                resumeSpill(controller, downstreamChannel);
+            }
+        });
+    }
+
+    /**
+     * Continue replaying what was spilled for a controller once the last piece has been written.
+     *
+     * @param controller the controller to replay to
+     * @param downstreamChannel the channel the replay started on
+     */
+    private synchronized void resumeSpill(ControllerConnection controller, Channel downstreamChannel) {
+        replaySpill(controller, downstreamChannel);
+    }
+
+    /**
+     * Close and delete the spill file of a controller, discarding anything in it.
+     *
+     * @param controller the controller whose spill file is closed
+     */
+    private void closeSpill(ControllerConnection controller) {
+        if (controller.getSpill() == null) {
+            return;
+        }
+
+        try {
+            controller.getSpill().close();
+        } catch (IOException e) {
+            log(" Controller " + controller.getId() + " Spill Not Deleted: " + e.getMessage());
         }
+
+        controller.setSpill(null);
+    }
+
+    /**
+     * Send a container to every controller, the message is encoded once and the buffer shared between channels. Each
+     * controller it is queued for is given its own reference to the container.
+     *
+     * @param container the container to send
+     */
+    private void sendToAllControllers(Container container) {
+        if (controllers.size() == 1) {
+            sendToController(ProxyChannelType.SWITCH, controllers.get(0), container);
+            return;
+        }
+
+        ByteBuf encoded = null;
+
+        for (ControllerConnection controller : controllers) {
+            if (controller.isQueueing()) {
+                enqueue(controller, container.retain());
+                continue;
+            }
+
+            if (encoded == null) {
+                encoded = controller.getChannel().alloc().directBuffer(container.getLength());
+                container.writeTo(encoded);
+            }
+
+            /* Each channel gets its own indexes over the one buffer, and a reference to release once written. */
+            write(controller.getChannel(), encoded.duplicate().retain());
+        }
+
+        if (encoded != null) {
+            encoded.release();
+        }
+
+        container.release();
     }
 
     /**
@@ -272,13 +1374,16 @@ public class ProxiedConnection {
     public void log(ProxyChannelType channelSource, ProxyChannelType channelDestination, Container container) {
         /* Account messages received. */
         if (channelSource == ProxyChannelType.SWITCH) {
-            upstreamReceived.get(container.getMessageType()).incrementAndGet();
+            upstreamReceived.incrementAndGet(container.getMessageType().ordinal());
         } else {
-            downstreamReceived.get(container.getMessageType()).incrementAndGet();
+            downstreamReceived.incrementAndGet(container.getMessageType().ordinal());
         }
 
-        if (owningProxy.isLogged(container.getMessageType())) {
-            log("[" + channelSource + "->" + channelDestination + "][" + container.getHeader().getTransactionId() + "][" + container.getMessageType() + "]" + container.getPacket().toString());
+        if (owningProxy.getSettings().isLogged(container.getMessageType())) {
+            /* Unknown messages can't be parsed, so only their header is logged. */
+            String details = (container.getMessageType() != Type.OFPT_UNKNOWN ? container.getPacket().toString()
+                    : "version=" + container.getHeader().getVersion() + ", type=" + container.getHeader().getType() + ", length=" + container.getHeader().getLength());
+            log("[" + channelSource + "->" + channelDestination + "][" + container.getHeader().getTransactionId() + "][" + container.getMessageType() + "]" + details);
         }
     }
 
@@ -327,9 +1432,11 @@ public class ProxiedConnection {
         this.datapathId = datapathId;
 
         StringBuilder stringBuilder = new StringBuilder();
+        datapathIdLong = 0;
 
         for (int i = 0; i < 8; i++) {
             stringBuilder.append(String.format("%02x", datapathId[i]));
+            datapathIdLong = (datapathIdLong << 8) | (datapathId[i] & 0xff);
         }
 
         datapathIdString = stringBuilder.toString();
@@ -344,6 +1451,15 @@ public class ProxiedConnection {
         return datapathId;
     }
 
+    /**
+     * Return the datapath ID handled by this proxied connection as a number.
+     *
+     * @return the datapath ID being handled, or zero if not learnt yet
+     */
+    public long getDatapathIdLong() {
+        return datapathIdLong;
+    }
+
     public String getDatapathIdString(){
         return datapathIdString;
     }
@@ -355,7 +1471,7 @@ public class ProxiedConnection {
      * @return ChannelType identified by the channel
      */
     public ProxyChannelType getProxyChannelType(Channel channel) {
-        return (channel == downstream ? ProxyChannelType.CONTROLLER : ProxyChannelType.SWITCH);
+        return (channel != upstream ? ProxyChannelType.CONTROLLER : ProxyChannelType.SWITCH);
     }
 
     /**
@@ -368,18 +1484,127 @@ public class ProxiedConnection {
     }
 
     /**
-     * Get the Downstream (Controller) OpenFlow version as dictated by the initial HELLO.
+     * Get the Downstream (Controller) OpenFlow version as dictated by the initial HELLO. For the upstream channel this
+     * is the version of the first controller to have sent a HELLO.
      *
-     * @return OpenFlow version as dictated by the initial HELLO
+     * @param channel the channel the version is required for
+     * @return OpenFlow version as dictated by the initial HELLO, or null if there has not been one
      */
-    public OFVersion getDownstreamVersion() {
-        return downstreamVersion;
+    public synchronized OFVersion getDownstreamVersion(Channel channel) {
+        ControllerConnection controller = getController(channel);
+
+        if (controller != null) {
+            return controller.getVersion();
+        }
+
+        for (ControllerConnection other : controllers) {
+            if (other.getVersion() != null) {
+                return other.getVersion();
+            }
+        }
+
+        return null;
     }
 
     public Channel getUpstream() {
         return upstream;
     }
 
+    /**
+     * Get the number of controller messages waiting for the FLOW_MOD pacer to send them to the switch.
+     *
+     * @return number of queued messages, zero if FLOW_MODs are not paced
+     */
+    public int getPacingQueueDepth() {
+        return flowModPacer != null ? flowModPacer.getQueueDepth() : 0;
+    }
+
+    /**
+     * Get the highest number of controller messages which have waited for the FLOW_MOD pacer at once.
+     *
+     * @return highest number of queued messages, zero if FLOW_MODs are not paced
+     */
+    public int getMaximumPacingQueueDepth() {
+        return flowModPacer != null ? flowModPacer.getMaximumQueueDepth() : 0;
+    }
+
+    /**
+     * Get the number of controller messages which have been delayed by the FLOW_MOD pacer.
+     *
+     * @return number of delayed messages, zero if FLOW_MODs are not paced
+     */
+    public long getPacingDelayedCount() {
+        return flowModPacer != null ? flowModPacer.getDelayedCount() : 0;
+    }
+
+    /**
+     * Sample the rate of messages received since the last sample, smoothed so a brief burst does not cause a switch
+     * to be migrated.
+     *
+     * @param seconds seconds since the last sample
+     * @return smoothed messages per second
+     */
+    synchronized double sampleMessageRate(double seconds) {
+        double rate = (messageCount - sampledMessageCount) / seconds;
+        sampledMessageCount = messageCount;
+        messageRate += (rate - messageRate) * RATE_SMOOTHING;
+
+        return messageRate;
+    }
+
+    /**
+     * Get the event loop handling the switch channel, which the controller channels share.
+     *
+     * @return event loop, or null if the switch is not connected
+     */
+    synchronized EventLoop getEventLoop() {
+        return upstream != null && upstream.isRegistered() ? upstream.eventLoop() : null;
+    }
+
+    /**
+     * Move the switch channel and every controller channel to another event loop, so that a busy loop can shed work.
+     * Nothing is moved while a channel is still connecting, as a deregistered channel would miss the connection
+     * completing.
+     *
+     * @param target event loop to move to
+     * @return true if the move was started
+     */
+    boolean migrate(EventLoop target) {
+        List<Channel> channels = new ArrayList<>();
+
+        synchronized (this) {
+            if (upstream == null || !upstream.isActive()) {
+                return false;
+            }
+
+            channels.add(upstream);
+
+            for (ControllerConnection controller : controllers) {
+                if (controller.getChannel() == null || !controller.getChannel().isActive()) {
+                    return false;
+                }
+
+                channels.add(controller.getChannel());
+            }
+        }
+
+        for (Channel channel : channels) {
+            /* Registration resumes reading on the new event loop, anything already queued on the old one still runs there. */
+            channel.deregister().addListener((ChannelFutureListener) deregistered -> {
+                if (deregistered.isSuccess() && channel.isOpen()) {
+                    target.register(channel).addListener((ChannelFutureListener) registered -> {
+                        if (!registered.isSuccess()) {
+                            log("Failed to migrate channel " + channel.remoteAddress() + ": " + registered.cause());
+                            channel.close();
+                        }
+                    });
+                }
+            });
+        }
+
+        return true;
+    }
+
     public boolean isReadyForInjectMessage() {
         return readyForInjectMessage;
     }
@@ -17,91 +17,228 @@ package com.leafgraph.flowdam.proxy;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Future;
+import com.leafgraph.flowdam.Flowdam;
+import com.leafgraph.flowdam.netty.BalancedEventLoopGroup;
+import com.leafgraph.flowdam.netty.InjectionChannelInitializer;
 import com.leafgraph.flowdam.netty.OpenFlowChannelInitializer;
-import com.leafgraph.flowdam.openflow.Type;
+import com.leafgraph.flowdam.netty.ReusePortServerSocketChannel;
 
+import java.io.IOException;
+import javax.net.ssl.SSLParameters;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A Proxy object is responsible for managing ProxiedConnections through it, it establishes the relationship between
  * an incoming connection to an outgoing connection.
  */
 public class Proxy {
+    /** Milliseconds between samples of the load on each worker event loop. */
+    private static final long LOAD_SAMPLE_INTERVAL = 1000;
+    /** Milliseconds between logs of the FLOW_MOD pacing queues. */
+    private static final long PACING_LOG_INTERVAL = 10000;
+    /** Size of the pooled buffer each worker event loop allocates while warming up, enough to create its pool chunk. */
+    private static final int WARM_UP_BUFFER_SIZE = 64 * 1024;
+
     /** Unique ID number for connection tracking. */
     private AtomicInteger uniqueIDSource = new AtomicInteger(0);
     /** Group for handling incoming connections (at the bind()/accept() level). */
     private EventLoopGroup bossGroup = new NioEventLoopGroup();
     /** Group for handling all connections after they have been accept()'d. */
-    private EventLoopGroup workerGroup = new NioEventLoopGroup();
+    private BalancedEventLoopGroup workerGroup = new BalancedEventLoopGroup();
+    /** Balancer choosing the worker event loop of each switch. */
+    private EventLoopBalancer eventLoopBalancer = new EventLoopBalancer(this, workerGroup.getEventLoops());
+    /** Admission of accepted switches to connect onwards to the controllers. */
+    private AdmissionControl admissionControl = new AdmissionControl(this, bossGroup);
+    /** Group for handling injector connections, apart from the workers so that the balancer only places switches, or
+     * null if injection is not enabled. */
+    private EventLoopGroup injectorGroup;
 
     /** Bootstrap for listening and accepting. */
     private ServerBootstrap serverBootstrap = new ServerBootstrap();
-    /** Bootstrap outgoing connections to controllers. */
-    private Bootstrap clientBootstrap = new Bootstrap();
+    /** Bootstraps for outgoing connections to controllers on a particular event loop, by event loop. */
+    private Map<EventLoop, Bootstrap> eventLoopBootstraps = new HashMap<>();
 
-    /** Host/port pair to listen for connections on. */
-    private InetSocketAddress listenOn;
-    /** Host/port pair for outgoing connections. */
-    private InetSocketAddress connectTo;
+    /** Current settings, replaced whole when the configuration is reloaded. */
+    private volatile ProxySettings settings;
+    /** Bind of the channel listening for switches, or null if not yet started. */
+    private ChannelFuture serverBindFuture;
+    /** Bind of the channel listening for injectors, or null if injection is not enabled. */
+    private ChannelFuture injectBindFuture;
+    /** Flag to specify if the proxy has stopped accepting connections and shuts down once the last switch has gone. */
+    private boolean draining = false;
+    /** Warm up of each worker event loop, or null if not yet started. */
+    private List<Future<?>> warmUpFutures;
 
     /** Milliseconds before a Channel should be considered dead from lack of messages. */
     private long idleReadTimeout = 300000;
     /** Milliseconds before a Channel should send a ECHO request if its idle. */
     private long idleWriteTimeout = 300000;
 
+    /** Number of bytes of switch messages currently queued for all controllers of every switch of this proxy. */
+    private AtomicLong queuedBytes = new AtomicLong();
+    /** Number of messages waiting for the FLOW_MOD pacer when last logged. */
+    private int loggedPacingQueueDepth = 0;
+    /** Number of switches on each worker event loop when last logged. */
+    private List<Integer> loggedEventLoopConnections = new ArrayList<>();
+    /** Number of messages delayed by the FLOW_MOD pacer when last logged. */
+    private long loggedPacingDelayedCount = 0;
+
+    /** Source of IDs for Injectors, counting down from -2 as -1 is reserved. */
+    private AtomicInteger injectorIdSource = new AtomicInteger(-1);
+    /** Injectors connected, by ID. */
+    private Map<Integer, Injector> injectors = new ConcurrentHashMap<>();
+    /** Proxied connections by datapath ID, once learnt. Not guarded by the proxy's lock, as it is updated while a
+     * ProxiedConnection holds its own. */
+    private Map<Long, ProxiedConnection> datapaths = new ConcurrentHashMap<>();
+
+    /** Threads running offloaded filters, or null if not yet needed. */
+    private ExecutorService filterExecutor;
+    /** Workers running offloaded filters, limited to filterWorkers at once, or null if not yet needed. */
+    private Executor filterWorkers;
+
     /* Map to link channels to a proxied connection. */
     private Map<Channel, ProxiedConnection> proxiedConnections = new HashMap<>();
     private ArrayList<ProxiedConnection> proxiedConnectionsList = new ArrayList<>();
 
-    /* List of all OpenFlow message types to log. */
-    private List<Type> loggedTypes;
-
     /**
-     * Create a new Proxy object which will automatically be capable of handling incoming connections.
+     * Create a new Proxy object, which is capable of handling incoming connections once started.
      *
-     * @param listenOn host/port to listen for connections on
-     * @param connectTo host/port to connect out to
-     * @param loggedTypes list of OpenFlow message types to log
+     * @param settings settings of the proxy, including the host/port to listen for connections on
      */
-    public Proxy(InetSocketAddress listenOn, InetSocketAddress connectTo, List<Type> loggedTypes) {
-        this.listenOn = listenOn;
-        this.connectTo = connectTo;
-        this.loggedTypes = loggedTypes;
+    public Proxy(ProxySettings settings) {
+        this.settings = settings;
+        injectorGroup = (settings.getInjectAddress() != null ? new NioEventLoopGroup(1) : null);
 
         /* Set up Netty groups, channels and pipelines. */
-        serverBootstrap.group(bossGroup, workerGroup).channel(NioServerSocketChannel.class).childHandler(new OpenFlowChannelInitializer(this, false)).option(ChannelOption.TCP_NODELAY, true);
-        clientBootstrap.group(workerGroup).channel(NioSocketChannel.class).handler(new OpenFlowChannelInitializer(this, true)).option(ChannelOption.TCP_NODELAY, true);
+        serverBootstrap.group(bossGroup, workerGroup).childHandler(new OpenFlowChannelInitializer(this, false)).option(ChannelOption.TCP_NODELAY, true);
+
+        /* Place switches by load rather than round robin, sampling the load periodically. */
+        workerGroup.setChooser(eventLoopBalancer::choose);
+        bossGroup.scheduleAtFixedRate(this::sampleEventLoops, LOAD_SAMPLE_INTERVAL, LOAD_SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+        bossGroup.scheduleAtFixedRate(this::logPacing, PACING_LOG_INTERVAL, PACING_LOG_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Begin listening for switches, and for injectors if enabled. Returns straight away, so that several proxies may
+     * bind at once, use awaitStarted() to wait for the listening sockets.
+     *
+     * Worker event loops only start their threads when first used, so each is started now and made to allocate from
+     * the buffer pool, rather than the first switches to connect paying for it.
+     */
+    public void start() {
+        Class<? extends ServerChannel> serverChannelClass = settings.isReusePort() ? ReusePortServerSocketChannel.class : NioServerSocketChannel.class;
+
+        serverBindFuture = serverBootstrap.channel(serverChannelClass).bind(settings.getLocalAddress());
+
+        if (settings.getInjectAddress() != null) {
+            ServerBootstrap injectBootstrap = new ServerBootstrap();
+            injectBootstrap.group(bossGroup, injectorGroup).channel(serverChannelClass).childHandler(new InjectionChannelInitializer(this)).option(ChannelOption.TCP_NODELAY, true);
+            injectBindFuture = injectBootstrap.bind(settings.getInjectAddress());
+        }
+
+        warmUpFutures = new ArrayList<>();
+
+        for (EventLoop eventLoop : workerGroup.getEventLoops()) {
+            warmUpFutures.add(eventLoop.submit(() -> PooledByteBufAllocator.DEFAULT.directBuffer(WARM_UP_BUFFER_SIZE).release()));
+        }
+    }
+
+    /**
+     * Wait until the proxy is listening and its worker event loops have warmed up.
+     *
+     * @throws IOException if a listening socket could not be bound
+     */
+    public void awaitStarted() throws IOException {
+        awaitBind(serverBindFuture, settings.getLocalAddress());
+
+        if (injectBindFuture != null) {
+            awaitBind(injectBindFuture, settings.getInjectAddress());
+        }
+
+        for (Future<?> warmUpFuture : warmUpFutures) {
+            warmUpFuture.awaitUninterruptibly();
+        }
+    }
+
+    /**
+     * Wait for a listening socket to be bound.
+     *
+     * @param bindFuture bind of the socket
+     * @param address address the socket is bound to
+     * @throws IOException if the socket could not be bound
+     */
+    private static void awaitBind(ChannelFuture bindFuture, InetSocketAddress address) throws IOException {
+        if (!bindFuture.awaitUninterruptibly().isSuccess()) {
+            Throwable cause = bindFuture.cause();
+
+            /* Report why the channel couldn't be created, rather than Netty's wrapping of it. */
+            while (cause.getCause() != null) {
+                cause = cause.getCause();
+            }
 
-        /* Begin proxy. */
-        serverBootstrap.bind(listenOn);
+            throw new IOException("Unable to listen on " + address + ": " + cause.getMessage(), bindFuture.cause());
+        }
     }
 
     /**
-     * Get an InetSocketAddress where to connect to.
+     * Close a listening socket, waiting for it to close. Nothing is done if the channel never reached an event loop,
+     * as happens when it could not be created.
      *
-     * @return InetSocketAddress to connect onwards to
+     * @param bindFuture bind of the socket, or null if never bound
      */
-    public InetSocketAddress getConnectTo() {
-        return connectTo;
+    private static void closeListener(ChannelFuture bindFuture) {
+        if (bindFuture != null && bindFuture.channel().isRegistered()) {
+            bindFuture.channel().close().syncUninterruptibly();
+        }
     }
 
-    public Bootstrap getClientBootstrap() {
-        return clientBootstrap;
+    /**
+     * Get the current settings of the proxy. Read them once and keep the instance while making a decision, so that
+     * every setting used comes from the same configuration.
+     *
+     * @return current settings
+     */
+    public ProxySettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Replace the settings of the proxy. Switches already connected carry on with what they were set up with, such as
+     * their controller connections, and pick up the rest of the new settings straight away. The addresses the proxy
+     * listens on are not changed.
+     *
+     * @param settings new settings
+     */
+    public void setSettings(ProxySettings settings) {
+        this.settings = settings;
     }
 
     /**
@@ -121,19 +258,86 @@ public class Proxy {
     }
 
     /**
-     * Register a new downstream channel to the ProxiedConnection which is represented using the upstream channel.
+     * Admit a newly registered switch to connect onwards to the controllers, straight away or once the accept rate and
+     * the maximum number of handshakes allow. Reading from the switch is paused while it waits.
+     *
+     * @param proxiedConnection ProxiedConnection returned by registerUpstream
+     * @param upstream upstream channel of the switch
+     */
+    public void admit(ProxiedConnection proxiedConnection, Channel upstream) {
+        admissionControl.admit(proxiedConnection, upstream);
+    }
+
+    /**
+     * Record a switch completing its handshake, allowing another to be admitted.
      *
-     * @param newDownstream new downstream channel
-     * @param existingUpstream the upstream channel during which the new downstream channel was created
-     * @return ProxiedConnection representing this new Downstream/existing Upstream connection
+     * @param proxiedConnection ProxiedConnection of the switch
+     * @param upstream upstream channel of the switch
      */
-    public synchronized ProxiedConnection registerDownstream(Channel newDownstream, Channel existingUpstream) {
+    void handshakeComplete(ProxiedConnection proxiedConnection, Channel upstream) {
+        admissionControl.handshakeComplete(proxiedConnection, upstream);
+    }
+
+    /**
+     * Connect a new downstream channel to a controller for the ProxiedConnection which is represented using the
+     * upstream channel. The channel is registered before the connection is attempted, so that it is always known by
+     * the time it becomes active.
+     *
+     * @param existingUpstream the upstream channel the new downstream channel is for
+     * @param controller the controller connection the new downstream channel is for
+     * @param controllerAddress host/port of the controller to connect to
+     */
+    synchronized void connectDownstream(Channel existingUpstream, ControllerConnection controller, final InetSocketAddress controllerAddress) {
         ProxiedConnection proxiedConnection = getProxiedConnection(existingUpstream);
+
+        if (proxiedConnection == null) {
+            return;
+        }
+
+        /* Controller channels share the switch's event loop, so the whole connection is handled on one core. */
+        ChannelFuture registerFuture = getClientBootstrap(existingUpstream.eventLoop()).register();
+        final Channel newDownstream = registerFuture.channel();
+
         proxiedConnections.put(newDownstream, proxiedConnection);
+        proxiedConnection.registerDownstream(newDownstream, controller);
 
-        proxiedConnection.registerDownstream(newDownstream);
+        /* Add callback to handle connection failure, the ProxiedConnection decides whether to try elsewhere. */
+        ChannelFutureListener failureListener = channelFuture -> {
+            if (!channelFuture.isSuccess()) {
+                Flowdam.logger.info("downstream create failed: " + controllerAddress + " " + channelFuture.cause());
+                unregisterDownstream(newDownstream);
+            }
+        };
 
-        return proxiedConnection;
+        /* Naming the controller lets the TLS engine resume its session when connecting to it again. */
+        SslContext controllerSslContext = settings.getControllerSslContext();
+
+        registerFuture.addListener((ChannelFutureListener) channelFuture -> {
+            if (channelFuture.isSuccess()) {
+                if (controllerSslContext != null) {
+                    SslHandler tls = controllerSslContext.newHandler(newDownstream.alloc(), controllerAddress.getHostString(), controllerAddress.getPort());
+                    /* Check the certificate names the controller, not only that it is signed by a trusted authority. */
+                    SSLParameters parameters = tls.engine().getSSLParameters();
+                    parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                    tls.engine().setSSLParameters(parameters);
+                    newDownstream.pipeline().addFirst("tls", tls);
+                }
+
+                newDownstream.connect(controllerAddress).addListener(failureListener);
+            } else {
+                failureListener.operationComplete(channelFuture);
+            }
+        });
+    }
+
+    /**
+     * Get a bootstrap for outgoing connections to controllers which registers channels with a particular event loop.
+     *
+     * @param eventLoop event loop to register channels with
+     * @return bootstrap for the event loop
+     */
+    private Bootstrap getClientBootstrap(EventLoop eventLoop) {
+        return eventLoopBootstraps.computeIfAbsent(eventLoop, loop -> new Bootstrap().group(loop).channel(NioSocketChannel.class).handler(new OpenFlowChannelInitializer(this, true)).option(ChannelOption.TCP_NODELAY, true));
     }
 
     /**
@@ -148,10 +352,104 @@ public class Proxy {
             proxiedConnectionsList.remove(proxiedConnection);
         }
 
-
         if (proxiedConnection != null) {
+            datapaths.remove(proxiedConnection.getDatapathIdLong(), proxiedConnection);
+            admissionControl.release(proxiedConnection);
             proxiedConnection.unregisterUpstream();
         }
+
+        if (draining && proxiedConnectionsList.isEmpty()) {
+            shutdown();
+        }
+    }
+
+    /**
+     * Stop accepting switches and injectors, leaving connected switches to carry on until they disconnect or the
+     * drain timeout passes, after which the proxy shuts down. Returns once the listening sockets are closed, so that
+     * their addresses may be reused straight away.
+     */
+    public void drain() {
+        closeListener(serverBindFuture);
+        closeListener(injectBindFuture);
+
+        synchronized (this) {
+            draining = true;
+
+            if (proxiedConnectionsList.isEmpty()) {
+                shutdown();
+            } else if (settings.getDrainTimeout() > 0) {
+                bossGroup.schedule(this::disconnectRemaining, settings.getDrainTimeout(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Disconnect the switches still connected once the drain timeout has passed, so that the proxy shuts down.
+     */
+    private void disconnectRemaining() {
+        List<ProxiedConnection> remaining;
+
+        synchronized (this) {
+            remaining = new ArrayList<>(proxiedConnectionsList);
+        }
+
+        Flowdam.logger.info("Drain timeout passed for " + settings.getLocalAddress() + ", disconnecting " + remaining.size() + " switches");
+
+        for (ProxiedConnection proxiedConnection : remaining) {
+            Channel upstream = proxiedConnection.getUpstream();
+
+            if (upstream != null) {
+                upstream.close();
+            }
+        }
+    }
+
+    /**
+     * Wait for a drained proxy to shut down, which happens once its last switch has gone.
+     */
+    public void awaitTermination() {
+        workerGroup.terminationFuture().awaitUninterruptibly();
+        bossGroup.terminationFuture().awaitUninterruptibly();
+
+        if (injectorGroup != null) {
+            injectorGroup.terminationFuture().awaitUninterruptibly();
+        }
+    }
+
+    /**
+     * Check if a drained proxy has finished shutting down.
+     *
+     * @return true if the proxy has shut down
+     */
+    public boolean isTerminated() {
+        return workerGroup.isTerminated() && bossGroup.isTerminated() && (injectorGroup == null || injectorGroup.isTerminated());
+    }
+
+    /**
+     * Check if the proxy has stopped accepting connections.
+     *
+     * @return true if the proxy is draining or has shut down
+     */
+    public synchronized boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Release the threads of a drained proxy, closing any injectors still connected.
+     */
+    private void shutdown() {
+        Flowdam.logger.info("Shutting down proxy for " + settings.getLocalAddress());
+
+        bossGroup.shutdownGracefully();
+        workerGroup.shutdownGracefully();
+
+        if (injectorGroup != null) {
+            injectorGroup.shutdownGracefully();
+        }
+
+        if (filterExecutor != null) {
+            filterExecutor.shutdown();
+        }
     }
 
     /**
@@ -162,15 +460,20 @@ public class Proxy {
     public synchronized void unregisterDownstream(Channel channel) {
         ProxiedConnection proxiedConnection = proxiedConnections.remove(channel);
 
-        if (proxiedConnectionsList.contains(proxiedConnection)){
-            proxiedConnectionsList.remove(proxiedConnection);
-        }
-
         if (proxiedConnection != null) {
-            proxiedConnection.unregisterDownstream();
+            proxiedConnection.unregisterDownstream(channel);
         }
     }
 
+    /**
+     * Fetch every ProxiedConnection, for sampling outside the proxy's lock.
+     *
+     * @return copy of the list of ProxiedConnections
+     */
+    synchronized List<ProxiedConnection> getProxiedConnectionsSnapshot() {
+        return new ArrayList<>(proxiedConnectionsList);
+    }
+
     /**
      * Fetch the ProxiedConnection identified by the Netty channel provided.
      *
@@ -181,6 +484,59 @@ public class Proxy {
         return proxiedConnections.get(channel);
     }
 
+    /**
+     * Record the datapath ID learnt for a ProxiedConnection, so that messages may be injected to it.
+     *
+     * @param datapathId datapath ID of the switch
+     * @param proxiedConnection ProxiedConnection handling the switch
+     */
+    void registerDatapath(long datapathId, ProxiedConnection proxiedConnection) {
+        datapaths.put(datapathId, proxiedConnection);
+    }
+
+    /**
+     * Fetch the ProxiedConnection handling a switch.
+     *
+     * @param datapathId datapath ID of the switch
+     * @return ProxiedConnection handling the switch, or null if not connected
+     */
+    public ProxiedConnection getProxiedConnection(long datapathId) {
+        return datapaths.get(datapathId);
+    }
+
+    /**
+     * Register a new injector connection.
+     *
+     * @param channel channel to the injector
+     * @return Injector representing the connection
+     */
+    public Injector registerInjector(Channel channel) {
+        int id = injectorIdSource.decrementAndGet();
+        Injector injector = new Injector(id, channel, settings.getMaximumPendingInjections());
+        injectors.put(id, injector);
+
+        return injector;
+    }
+
+    /**
+     * Unregister an injector connection, replies still owed to it are dropped.
+     *
+     * @param injector Injector to unregister
+     */
+    public void unregisterInjector(Injector injector) {
+        injectors.remove(injector.getId());
+    }
+
+    /**
+     * Fetch an Injector by ID.
+     *
+     * @param id ID of the Injector
+     * @return Injector, or null if it has disconnected
+     */
+    Injector getInjector(int id) {
+        return injectors.get(id);
+    }
+
     /**
      * Get the number of milliseconds before a read timeout should be declared on a Netty channel. Exceeding this value
      * results in a channel being closed.
@@ -202,12 +558,147 @@ public class Proxy {
     }
 
     /**
-     * Check to see if the proxy should log the message type provided.
+     * Get the workers which run offloaded filters, created when first needed. Virtual threads are used where the JDK
+     * provides them, as offloaded filters are expected to block, otherwise a fixed pool of daemon threads. Either way
+     * at most filterWorkers filters run at once, virtual threads beyond that wait for a permit.
+     *
+     * @return executor for offloaded filters
+     */
+    public synchronized Executor getFilterExecutor() {
+        if (filterExecutor == null) {
+            try {
+                ExecutorService virtualThreads = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                Semaphore running = new Semaphore(settings.getFilterWorkers());
+
+                filterExecutor = virtualThreads;
+                filterWorkers = runnable -> virtualThreads.execute(() -> {
+                    running.acquireUninterruptibly();
+
+                    try {
+                        runnable.run();
+                    } finally {
+                        running.release();
+                    }
+                });
+            } catch (ReflectiveOperationException e) {
+                AtomicInteger threadIdSource = new AtomicInteger(0);
+
+                filterExecutor = Executors.newFixedThreadPool(settings.getFilterWorkers(), runnable -> {
+                    Thread thread = new Thread(runnable, "flowdam-filter-" + threadIdSource.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                filterWorkers = filterExecutor;
+            }
+        }
+
+        return filterWorkers;
+    }
+
+    /**
+     * Sample the load on each worker event loop, logging the loads whenever switches have been placed, have gone or
+     * have been migrated since they were last logged.
+     */
+    private void sampleEventLoops() {
+        eventLoopBalancer.sample();
+
+        List<EventLoopLoad> loads = getEventLoopLoads();
+        List<Integer> connections = new ArrayList<>();
+
+        for (EventLoopLoad load : loads) {
+            connections.add(load.getConnections());
+        }
+
+        if (!connections.equals(loggedEventLoopConnections)) {
+            loggedEventLoopConnections = connections;
+            Flowdam.logger.info("Event loop loads for " + settings.getLocalAddress() + ": " + loads);
+        }
+    }
+
+    /**
+     * Get the load of each worker event loop, as last sampled.
+     *
+     * @return load of each event loop
+     */
+    public List<EventLoopLoad> getEventLoopLoads() {
+        return eventLoopBalancer.getLoads();
+    }
+
+    /**
+     * Get the number of controller messages waiting for the FLOW_MOD pacer across all connections.
+     *
+     * @return number of queued messages
+     */
+    public synchronized int getPacingQueueDepth() {
+        int depth = 0;
+
+        for (ProxiedConnection proxiedConnection : proxiedConnectionsList) {
+            depth += proxiedConnection.getPacingQueueDepth();
+        }
+
+        return depth;
+    }
+
+    /**
+     * Log the FLOW_MOD pacing queues across all connections, if anything has been queued or delayed since last logged.
+     */
+    private void logPacing() {
+        int depth = getPacingQueueDepth();
+        int highest = 0;
+        long delayed = 0;
+
+        synchronized (this) {
+            for (ProxiedConnection proxiedConnection : proxiedConnectionsList) {
+                highest = Math.max(highest, proxiedConnection.getMaximumPacingQueueDepth());
+                delayed += proxiedConnection.getPacingDelayedCount();
+            }
+        }
+
+        if (depth == loggedPacingQueueDepth && delayed == loggedPacingDelayedCount) {
+            return;
+        }
+
+        loggedPacingQueueDepth = depth;
+        loggedPacingDelayedCount = delayed;
+        Flowdam.logger.info("FLOW_MOD pacing for " + settings.getLocalAddress() + ", " + depth + " messages queued, " + delayed
+                + " delayed for the switches connected, at most " + highest + " queued for one switch");
+    }
+
+    /**
+     * Get the number of bytes of switch messages currently queued for all controllers of every switch.
+     *
+     * @return number of queued bytes across the proxy
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Reserve room in the proxy wide budget for a message to be queued for a controller.
+     *
+     * @param bytes size of the message
+     * @return true if reserved, false if the budget would be exceeded
+     */
+    boolean reserveQueuedBytes(int bytes) {
+        long queued;
+
+        do {
+            queued = queuedBytes.get();
+
+            if (queued + bytes > settings.getMaximumTotalQueuedBytes()) {
+                return false;
+            }
+        } while (!queuedBytes.compareAndSet(queued, queued + bytes));
+
+        return true;
+    }
+
+    /**
+     * Return room to the proxy wide budget once queued messages have been sent or discarded.
      *
-     * @param type message type to check if it's logged
-     * @return true if it should be logged
+     * @param bytes number of bytes no longer queued
      */
-    public boolean isLogged(Type type) {
-        return loggedTypes.contains(type);
+    void releaseQueuedBytes(int bytes) {
+        queuedBytes.addAndGet(-bytes);
     }
 }
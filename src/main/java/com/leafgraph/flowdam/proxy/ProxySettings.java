@@ -0,0 +1,830 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.proxy;
+
+import com.leafgraph.flowdam.Flowdam;
+import com.leafgraph.flowdam.configuration.ConfigurationSection;
+import com.leafgraph.flowdam.filter.FilterRule;
+import com.leafgraph.flowdam.filter.FilterTable;
+import com.leafgraph.flowdam.filter.MessageFilter;
+import com.leafgraph.flowdam.netty.ReusePortServerSocketChannel;
+import com.leafgraph.flowdam.openflow.Type;
+import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+
+import javax.net.ssl.SSLException;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * ProxySettings holds the configuration of a proxy, bound once from its ConfigurationSection whenever the
+ * configuration is loaded. A ProxySettings is never modified, a reload replaces it whole, so reading it on the hot path
+ * needs no locking and every setting read from one instance is consistent with the others.
+ */
+public class ProxySettings {
+    /** Host/port pair to listen for connections on. */
+    private final InetSocketAddress localAddress;
+    /** Host/port pair to listen for injector connections on, or null if injection is not enabled. */
+    private final InetSocketAddress injectAddress;
+    /** Flag to specify if the listening sockets are shared with other processes using SO_REUSEPORT. */
+    private final boolean reusePort;
+    /** Milliseconds a draining proxy waits for its switches to disconnect before disconnecting them, or zero to wait
+     * for as long as they stay connected. */
+    private final long drainTimeout;
+    /** Switches admitted per second to begin their handshake with the controllers, or zero if not limited. */
+    private final int acceptRate;
+    /** Maximum number of switches admitted back to back before the accept rate applies. */
+    private final int acceptBurst;
+    /** Maximum number of switches whose handshake with the controllers may be in progress at once, or zero if not limited. */
+    private final int maximumHandshakes;
+    /** Milliseconds after admission that a switch stops counting towards maximumHandshakes, even if not complete. */
+    private final long handshakeTimeout;
+    /** TLS context for connections from switches, or null if switches connect in plaintext. */
+    private final SslContext switchSslContext;
+    /** TLS context for connections to controllers, or null if controllers are connected to in plaintext. */
+    private final SslContext controllerSslContext;
+    /** Settings and certificate files switchSslContext was built from, or null if switches connect in plaintext. */
+    private final Map<String, Object> switchTlsSource;
+    /** Settings and certificate files controllerSslContext was built from, or null if controllers are connected to
+     * in plaintext. */
+    private final Map<String, Object> controllerTlsSource;
+    /** Host/port pairs for outgoing connections, one per controller. */
+    private final List<InetSocketAddress> controllers;
+    /** Host/port pairs failed over to once the controllers are unavailable. */
+    private final List<InetSocketAddress> standbyControllers;
+    /** OpenFlow message types to log. */
+    private final Set<Type> loggedTypes;
+    /** Filter rules applied to every message received, or null if there are none. */
+    private final FilterTable filterTable;
+
+    /** Flag to specify if FLOW_MOD ADDs duplicating a flow already installed on the switch are absorbed. */
+    private final boolean suppressDuplicateFlowMods;
+    /** Number of installed flows remembered per switch for duplicate suppression. */
+    private final int duplicateFlowModEntries;
+    /** Milliseconds an installed flow is remembered for duplicate suppression. */
+    private final long duplicateFlowModLifetime;
+    /** Maximum number of requests per switch awaiting a reply. */
+    private final int maximumTransactions;
+    /** Milliseconds after which a request without a reply is forgotten. */
+    private final long transactionTimeout;
+    /** FLOW_MODs per second sent to each switch, or zero if not paced. */
+    private final int flowModRate;
+    /** Maximum number of FLOW_MODs sent back to back to each switch. */
+    private final int flowModBurst;
+    /** Flag to specify if paced FLOW_MOD DELETEs are sent ahead of other messages. */
+    private final boolean prioritizeFlowModDeletes;
+    /** Maximum number of controller messages waiting for the pacer of a switch before reading from its controllers is paused. */
+    private final int maximumPacedMessages;
+    /** Flag to specify if a BARRIER_REQUEST following another still in flight, with no command between, shares its reply. */
+    private final boolean coalesceBarriers;
+    /** Flag to specify if bursts of FLOW_MODs to OpenFlow 1.4+ switches are sent as bundles. */
+    private final boolean bundleFlowMods;
+    /** Maximum number of FLOW_MODs in a bundle. */
+    private final int maximumBundleMessages;
+    /** Milliseconds after a bundle is opened that it is committed if nothing else has ended it. */
+    private final long bundleCommitDelay;
+    /** Milliseconds a switch is kept connected while failing over to another controller, or zero to not fail over. */
+    private final long failoverTimeout;
+    /** Milliseconds before retrying a controller address, doubled on each further attempt. */
+    private final long failoverRetryDelay;
+    /** Maximum number of switch messages queued for each controller while it is unavailable. */
+    private final int maximumQueuedMessages;
+    /** Maximum number of bytes of switch messages queued for each controller while it is unavailable. */
+    private final int maximumQueuedBytes;
+    /** Maximum number of bytes of switch messages queued for all controllers of every switch of the proxy. */
+    private final long maximumTotalQueuedBytes;
+    /** Directory asynchronous switch messages are spilled to once the queue for a controller is full, or null to drop them. */
+    private final Path spillDirectory;
+    /** Maximum number of bytes spilled for each controller. */
+    private final long maximumSpillBytes;
+    /** Milliseconds after which a spilled PACKET_IN is discarded rather than replayed. */
+    private final long spillPacketInLifetime;
+    /** Ratio of the mean message rate a worker event loop may exceed before a switch is migrated off it, or zero to never migrate. */
+    private final double rebalanceThreshold;
+    /** Number of worker threads running offloaded filters, when virtual threads are not available. */
+    private final int filterWorkers;
+    /** Maximum number of messages per channel waiting on offloaded filters before reading from the channel stops. */
+    private final int maximumPendingFilters;
+    /** Maximum number of injected messages being written to switches before reading from the injector stops. */
+    private final int maximumPendingInjections;
+
+    /**
+     * Bind the configuration of a proxy.
+     *
+     * TLS contexts are taken from the previous settings where their section and certificate files are unchanged, so
+     * that the sessions cached by them can still be resumed after a reload.
+     *
+     * @param proxyName name of the proxy being configured, for logging
+     * @param proxyConfig configuration section of the proxy
+     * @param previous settings of the proxy before this reload, or null if not running
+     * @throws IllegalArgumentException if the proxy has no port to listen on or no controllers, its TLS certificates
+     *                                  cannot be loaded, reusePort is set where SO_REUSEPORT is not available or it
+     *                                  has fewer than one filter worker or pending filter
+     */
+    public ProxySettings(String proxyName, ConfigurationSection proxyConfig, ProxySettings previous) {
+        List<InetSocketAddress> controllers = new ArrayList<>();
+
+        if (proxyConfig.isConfigurationSection("controllers")) {
+            controllers = readControllers(proxyName, proxyConfig.getConfigurationSection("controllers"));
+        } else if (proxyConfig.isSet("remotePort") && proxyConfig.isSet("remoteAddress")) {
+            controllers.add(new InetSocketAddress(proxyConfig.getString("remoteAddress"), proxyConfig.getInteger("remotePort")));
+        }
+
+        if (!proxyConfig.isSet("localPort") || controllers.isEmpty()) {
+            throw new IllegalArgumentException("Missing Critical " + proxyName);
+        }
+
+        this.controllers = Collections.unmodifiableList(controllers);
+
+        if (proxyConfig.isSet("localAddress")) {
+            localAddress = new InetSocketAddress(proxyConfig.getString("localAddress"), proxyConfig.getInteger("localPort"));
+        } else {
+            localAddress = new InetSocketAddress(proxyConfig.getInteger("localPort"));
+        }
+
+        if (proxyConfig.isSet("injectPort")) {
+            injectAddress = new InetSocketAddress(proxyConfig.getString("injectAddress", "127.0.0.1"), proxyConfig.getInteger("injectPort"));
+        } else {
+            injectAddress = null;
+        }
+
+        if (proxyConfig.isConfigurationSection("switchTls")) {
+            ConfigurationSection tlsConfig = proxyConfig.getConfigurationSection("switchTls");
+            switchTlsSource = describeTls(tlsConfig);
+
+            if (previous != null && switchTlsSource.equals(previous.switchTlsSource)) {
+                switchSslContext = previous.switchSslContext;
+            } else {
+                switchSslContext = readTls(proxyName, "switchTls", tlsConfig, true);
+            }
+        } else {
+            switchTlsSource = null;
+            switchSslContext = null;
+        }
+
+        if (proxyConfig.isConfigurationSection("controllerTls")) {
+            ConfigurationSection tlsConfig = proxyConfig.getConfigurationSection("controllerTls");
+            controllerTlsSource = describeTls(tlsConfig);
+
+            if (previous != null && controllerTlsSource.equals(previous.controllerTlsSource)) {
+                controllerSslContext = previous.controllerSslContext;
+            } else {
+                controllerSslContext = readTls(proxyName, "controllerTls", tlsConfig, false);
+            }
+        } else {
+            controllerTlsSource = null;
+            controllerSslContext = null;
+        }
+
+        reusePort = proxyConfig.getBoolean("reusePort", false);
+
+        if (reusePort && !ReusePortServerSocketChannel.isSupported()) {
+            throw new IllegalArgumentException("Invalid " + proxyName + " reusePort: SO_REUSEPORT is not provided by this JDK");
+        }
+
+        drainTimeout = proxyConfig.getLong("drainTimeout", 60000);
+        acceptRate = proxyConfig.getInteger("acceptRate", 0);
+        acceptBurst = proxyConfig.getInteger("acceptBurst", 10);
+        maximumHandshakes = proxyConfig.getInteger("maximumHandshakes", 0);
+        handshakeTimeout = proxyConfig.getLong("handshakeTimeout", 10000);
+
+        if (proxyConfig.isConfigurationSection("standbyControllers")) {
+            standbyControllers = Collections.unmodifiableList(readControllers(proxyName, proxyConfig.getConfigurationSection("standbyControllers")));
+        } else {
+            standbyControllers = Collections.emptyList();
+        }
+
+        loggedTypes = EnumSet.noneOf(Type.class);
+
+        if (proxyConfig.isConfigurationSection("loggedTypes")) {
+            for (String typeName : proxyConfig.getConfigurationSection("loggedTypes").getKeys(false)) {
+                try {
+                    loggedTypes.add(Type.valueOf(typeName));
+                } catch (IllegalArgumentException e) {
+                    Flowdam.logger.warn("Unknown " + proxyName + " logged type " + typeName);
+                }
+            }
+        }
+
+        if (proxyConfig.isConfigurationSection("filters")) {
+            filterTable = readFilters(proxyName, proxyConfig.getConfigurationSection("filters"));
+        } else {
+            filterTable = null;
+        }
+
+        suppressDuplicateFlowMods = proxyConfig.getBoolean("suppressDuplicateFlowMods", false);
+        duplicateFlowModEntries = proxyConfig.getInteger("duplicateFlowModEntries", 10000);
+        duplicateFlowModLifetime = proxyConfig.getLong("duplicateFlowModLifetime", 60000);
+        maximumTransactions = proxyConfig.getInteger("maximumTransactions", 100000);
+        transactionTimeout = proxyConfig.getLong("transactionTimeout", 60000);
+        flowModRate = proxyConfig.getInteger("flowModRate", 0);
+        flowModBurst = proxyConfig.getInteger("flowModBurst", 100);
+        prioritizeFlowModDeletes = proxyConfig.getBoolean("prioritizeFlowModDeletes", false);
+        maximumPacedMessages = proxyConfig.getInteger("maximumPacedMessages", 10000);
+
+        if (maximumPacedMessages < 1) {
+            throw new IllegalArgumentException("Invalid " + proxyName + " maximumPacedMessages, must be at least 1");
+        }
+
+        coalesceBarriers = proxyConfig.getBoolean("coalesceBarriers", false);
+        bundleFlowMods = proxyConfig.getBoolean("bundleFlowMods", false);
+        maximumBundleMessages = proxyConfig.getInteger("maximumBundleMessages", 1000);
+        bundleCommitDelay = proxyConfig.getLong("bundleCommitDelay", 10);
+        failoverTimeout = proxyConfig.getLong("failoverTimeout", 0);
+        failoverRetryDelay = proxyConfig.getLong("failoverRetryDelay", 100);
+        maximumQueuedMessages = proxyConfig.getInteger("maximumQueuedMessages", 10000);
+        maximumQueuedBytes = proxyConfig.getInteger("maximumQueuedBytes", 4 * 1024 * 1024);
+        maximumTotalQueuedBytes = proxyConfig.getLong("maximumTotalQueuedBytes", 256 * 1024 * 1024);
+        spillDirectory = proxyConfig.isSet("spillDirectory") ? Paths.get(proxyConfig.getString("spillDirectory")) : null;
+        maximumSpillBytes = proxyConfig.getLong("maximumSpillBytes", 1024L * 1024 * 1024);
+        spillPacketInLifetime = proxyConfig.getLong("spillPacketInLifetime", 5000);
+        rebalanceThreshold = proxyConfig.getDouble("rebalanceThreshold", 1.5);
+        filterWorkers = proxyConfig.getInteger("filterWorkers", 16);
+        maximumPendingFilters = proxyConfig.getInteger("maximumPendingFilters", 1000);
+
+        if (filterWorkers < 1 || maximumPendingFilters < 1) {
+            throw new IllegalArgumentException("Invalid " + proxyName + " filterWorkers and maximumPendingFilters, both must be at least 1");
+        }
+
+        maximumPendingInjections = proxyConfig.getInteger("maximumPendingInjections", 10000);
+    }
+
+    /**
+     * Read a map of controller addresses from configuration, each entry having a remoteAddress and remotePort.
+     *
+     * @param proxyName name of the proxy being configured, for logging
+     * @param controllersConfig configuration section holding the controllers
+     * @return controller addresses in the order configured, skipping any which are incomplete
+     */
+    private static List<InetSocketAddress> readControllers(String proxyName, ConfigurationSection controllersConfig) {
+        List<InetSocketAddress> controllers = new ArrayList<>();
+
+        for (String controllerName : controllersConfig.getKeys(false)) {
+            ConfigurationSection controllerConfig = controllersConfig.getConfigurationSection(controllerName);
+
+            if (controllerConfig == null || !controllerConfig.isSet("remoteAddress") || !controllerConfig.isSet("remotePort")) {
+                Flowdam.logger.warn("Missing Critical " + proxyName + " controller " + controllerName);
+                continue;
+            }
+
+            controllers.add(new InetSocketAddress(controllerConfig.getString("remoteAddress"), controllerConfig.getInteger("remotePort")));
+        }
+
+        return controllers;
+    }
+
+    /**
+     * Read a map of filter rules from configuration, each entry naming the MessageFilter class to load and the
+     * messages it applies to. The whole entry is also given to the filter for its own settings.
+     *
+     * @param proxyName name of the proxy being configured, for logging
+     * @param filtersConfig configuration section holding the filter rules
+     * @return compiled filter rules, or null if there are none
+     */
+    private static FilterTable readFilters(String proxyName, ConfigurationSection filtersConfig) {
+        List<FilterRule> rules = new ArrayList<>();
+
+        for (String ruleName : filtersConfig.getKeys(false)) {
+            ConfigurationSection ruleConfig = filtersConfig.getConfigurationSection(ruleName);
+
+            if (ruleConfig == null || !ruleConfig.isSet("filter")) {
+                Flowdam.logger.warn("Missing Critical " + proxyName + " filter " + ruleName);
+                continue;
+            }
+
+            try {
+                MessageFilter filter = Class.forName(ruleConfig.getString("filter")).asSubclass(MessageFilter.class).getDeclaredConstructor().newInstance();
+                filter.configure(ruleConfig);
+
+                Set<Type> types = new HashSet<>();
+
+                if (ruleConfig.isConfigurationSection("types")) {
+                    for (String typeName : ruleConfig.getConfigurationSection("types").getKeys(false)) {
+                        types.add(Type.valueOf(typeName));
+                    }
+                }
+
+                ProxyChannelType source = ruleConfig.isSet("source") ? ProxyChannelType.valueOf(ruleConfig.getString("source")) : null;
+                Set<Long> datapathIds = new HashSet<>();
+
+                if (ruleConfig.isConfigurationSection("datapathIds")) {
+                    for (String datapathId : ruleConfig.getConfigurationSection("datapathIds").getKeys(false)) {
+                        datapathIds.add(Long.parseUnsignedLong(datapathId.replace(":", ""), 16));
+                    }
+                }
+
+                Map<String, String> matchFields = new HashMap<>();
+
+                if (ruleConfig.isConfigurationSection("match")) {
+                    ConfigurationSection matchConfig = ruleConfig.getConfigurationSection("match");
+
+                    for (String fieldName : matchConfig.getKeys(false)) {
+                        matchFields.put(fieldName, String.valueOf(matchConfig.get(fieldName)));
+                    }
+                }
+
+                rules.add(new FilterRule(types, source, datapathIds, matchFields, filter, ruleConfig.getBoolean("offload", false),
+                        ruleConfig.getBoolean("refuse", false)));
+            } catch (ReflectiveOperationException | ClassCastException | IllegalArgumentException e) {
+                Flowdam.logger.warn("Invalid " + proxyName + " filter " + ruleName + ": " + e);
+            }
+        }
+
+        return rules.isEmpty() ? null : new FilterTable(rules);
+    }
+
+    /**
+     * Describe what a TLS context is built from, the settings of its section along with the modification time and
+     * length of each certificate and key file, so that a reload can tell whether the context needs building again.
+     *
+     * @param tlsConfig configuration section holding the TLS settings
+     * @return settings and file attributes, equal to a previous description if nothing has changed
+     */
+    private static Map<String, Object> describeTls(ConfigurationSection tlsConfig) {
+        Map<String, Object> source = new HashMap<>();
+
+        for (String key : tlsConfig.getKeys(false)) {
+            source.put(key, tlsConfig.get(key));
+        }
+
+        for (String key : new String[] { "certificate", "privateKey", "trustedCertificates" }) {
+            if (tlsConfig.isSet(key)) {
+                File file = new File(tlsConfig.getString(key));
+                source.put("file:" + key, Arrays.asList(file.lastModified(), file.length()));
+            }
+        }
+
+        return source;
+    }
+
+    /**
+     * Build a TLS context from configuration, using OpenSSL through netty-tcnative where it is on the classpath and
+     * the JDK's engine otherwise. Certificates and keys are read from PEM files, keys in PKCS#8.
+     *
+     * Accepting switches requires a certificate and key, and if trustedCertificates is given switches must present a
+     * certificate signed by one of them. Connecting to controllers verifies them against trustedCertificates, or the
+     * JDK's trusted certificates if not given, optionally presenting a certificate and key of our own.
+     *
+     * Sessions are cached so that reconnecting peers resume them rather than repeating the full handshake.
+     *
+     * @param proxyName name of the proxy being configured, for logging
+     * @param sectionName name of the configuration section, for logging
+     * @param tlsConfig configuration section holding the TLS settings
+     * @param server true for the context accepting switches, false for the context connecting to controllers
+     * @return TLS context
+     * @throws IllegalArgumentException if the certificates or keys cannot be loaded
+     */
+    private static SslContext readTls(String proxyName, String sectionName, ConfigurationSection tlsConfig, boolean server) {
+        File certificate = tlsConfig.isSet("certificate") ? new File(tlsConfig.getString("certificate")) : null;
+        File privateKey = tlsConfig.isSet("privateKey") ? new File(tlsConfig.getString("privateKey")) : null;
+        File trustedCertificates = tlsConfig.isSet("trustedCertificates") ? new File(tlsConfig.getString("trustedCertificates")) : null;
+        String privateKeyPassword = tlsConfig.getString("privateKeyPassword");
+
+        if ((certificate == null) != (privateKey == null) || (server && certificate == null)) {
+            throw new IllegalArgumentException("Missing Critical " + proxyName + " " + sectionName + " certificate and privateKey");
+        }
+
+        try {
+            SslContextBuilder builder;
+
+            if (server) {
+                builder = SslContextBuilder.forServer(certificate, privateKey, privateKeyPassword);
+
+                if (trustedCertificates != null) {
+                    builder.clientAuth(ClientAuth.REQUIRE);
+                }
+            } else {
+                builder = SslContextBuilder.forClient();
+
+                if (certificate != null) {
+                    builder.keyManager(certificate, privateKey, privateKeyPassword);
+                }
+            }
+
+            return builder.sslProvider(OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK)
+                    .trustManager(trustedCertificates)
+                    .sessionCacheSize(tlsConfig.getLong("sessionCacheSize", 20000))
+                    .sessionTimeout(tlsConfig.getLong("sessionTimeout", 86400))
+                    .build();
+        } catch (SSLException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid " + proxyName + " " + sectionName + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the host/port pair to listen for connections on.
+     *
+     * @return address to listen on
+     */
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    /**
+     * Get the host/port pair to listen for injector connections on.
+     *
+     * @return address to listen for injectors on, or null if injection is not enabled
+     */
+    public InetSocketAddress getInjectAddress() {
+        return injectAddress;
+    }
+
+    /**
+     * Get the TLS context for connections from switches.
+     *
+     * @return TLS context, or null if switches connect in plaintext
+     */
+    public SslContext getSwitchSslContext() {
+        return switchSslContext;
+    }
+
+    /**
+     * Get the TLS context for connections to controllers.
+     *
+     * @return TLS context, or null if controllers are connected to in plaintext
+     */
+    public SslContext getControllerSslContext() {
+        return controllerSslContext;
+    }
+
+    /**
+     * Check if the listening sockets are shared with other processes using SO_REUSEPORT, so that a new Flowdam
+     * process can listen before this one stops.
+     *
+     * @return true if SO_REUSEPORT is set
+     */
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Check if the listening sockets of other settings are the same as these, otherwise a proxy must be replaced to
+     * move from one to the other.
+     *
+     * @param other settings to compare with
+     * @return true if the proxy can keep its listening sockets
+     */
+    public boolean isSameListener(ProxySettings other) {
+        return localAddress.equals(other.localAddress) && Objects.equals(injectAddress, other.injectAddress) && reusePort == other.reusePort;
+    }
+
+    /**
+     * Get the number of milliseconds a draining proxy waits for its switches to disconnect before disconnecting them.
+     *
+     * @return milliseconds to wait, or zero to wait for as long as switches stay connected
+     */
+    public long getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    /**
+     * Get the number of switches admitted per second to begin their handshake with the controllers.
+     *
+     * @return switches per second, or zero if not limited
+     */
+    public int getAcceptRate() {
+        return acceptRate;
+    }
+
+    /**
+     * Get the maximum number of switches admitted back to back before the accept rate applies.
+     *
+     * @return maximum number of switches admitted back to back
+     */
+    public int getAcceptBurst() {
+        return acceptBurst;
+    }
+
+    /**
+     * Get the maximum number of switches whose handshake with the controllers may be in progress at once.
+     *
+     * @return maximum number of handshakes, or zero if not limited
+     */
+    public int getMaximumHandshakes() {
+        return maximumHandshakes;
+    }
+
+    /**
+     * Get the number of milliseconds after admission that a switch stops counting towards the maximum number of
+     * handshakes, so that a switch which never completes its handshake does not hold up the others.
+     *
+     * @return milliseconds before a handshake stops being counted
+     */
+    public long getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    /**
+     * Get the InetSocketAddresses of the controllers to connect to.
+     *
+     * @return InetSocketAddresses to connect onwards to
+     */
+    public List<InetSocketAddress> getControllers() {
+        return controllers;
+    }
+
+    /**
+     * Get the InetSocketAddresses of the standby controllers to fail over to.
+     *
+     * @return InetSocketAddresses of the standby controllers
+     */
+    public List<InetSocketAddress> getStandbyControllers() {
+        return standbyControllers;
+    }
+
+    /**
+     * Get the InetSocketAddress of a controller by index, the controllers are followed by the standby controllers and
+     * the index wraps around so that failover can step through every address.
+     *
+     * @param index index of the controller address
+     * @return InetSocketAddress to connect onwards to
+     */
+    public InetSocketAddress getControllerAddress(int index) {
+        int wrapped = index % getControllerAddressCount();
+
+        return wrapped < controllers.size() ? controllers.get(wrapped) : standbyControllers.get(wrapped - controllers.size());
+    }
+
+    /**
+     * Get the total number of controller addresses, including standby controllers.
+     *
+     * @return number of controller addresses
+     */
+    public int getControllerAddressCount() {
+        return controllers.size() + standbyControllers.size();
+    }
+
+    /**
+     * Check to see if the proxy should log the message type provided.
+     *
+     * @param type message type to check if it's logged
+     * @return true if it should be logged
+     */
+    public boolean isLogged(Type type) {
+        return loggedTypes.contains(type);
+    }
+
+    /**
+     * Get the filter rules applied to every message received from switches and controllers.
+     *
+     * @return compiled filter rules, or null if there are none
+     */
+    public FilterTable getFilterTable() {
+        return filterTable;
+    }
+
+    /**
+     * Check if FLOW_MOD ADDs duplicating a flow already installed on the switch are absorbed.
+     *
+     * @return true if duplicate FLOW_MOD ADDs are absorbed
+     */
+    public boolean isSuppressDuplicateFlowMods() {
+        return suppressDuplicateFlowMods;
+    }
+
+    /**
+     * Get the number of installed flows remembered per switch for duplicate suppression.
+     *
+     * @return number of remembered flows
+     */
+    public int getDuplicateFlowModEntries() {
+        return duplicateFlowModEntries;
+    }
+
+    /**
+     * Get the number of milliseconds an installed flow is remembered for duplicate suppression.
+     *
+     * @return milliseconds a flow is remembered
+     */
+    public long getDuplicateFlowModLifetime() {
+        return duplicateFlowModLifetime;
+    }
+
+    /**
+     * Get the maximum number of requests per switch awaiting a reply.
+     *
+     * @return maximum number of outstanding requests
+     */
+    public int getMaximumTransactions() {
+        return maximumTransactions;
+    }
+
+    /**
+     * Get the number of milliseconds after which a request without a reply is forgotten.
+     *
+     * @return milliseconds before a request is forgotten
+     */
+    public long getTransactionTimeout() {
+        return transactionTimeout;
+    }
+
+    /**
+     * Get the number of FLOW_MODs per second sent to each switch.
+     *
+     * @return FLOW_MODs per second, or zero if not paced
+     */
+    public int getFlowModRate() {
+        return flowModRate;
+    }
+
+    /**
+     * Get the maximum number of FLOW_MODs sent back to back to each switch.
+     *
+     * @return maximum number of FLOW_MODs sent back to back
+     */
+    public int getFlowModBurst() {
+        return flowModBurst;
+    }
+
+    /**
+     * Check if paced FLOW_MOD DELETEs are sent ahead of other messages.
+     *
+     * @return true if paced DELETEs are sent first
+     */
+    public boolean isPrioritizeFlowModDeletes() {
+        return prioritizeFlowModDeletes;
+    }
+
+    /**
+     * Get the maximum number of controller messages waiting for the pacer of a switch before reading from its
+     * controllers is paused.
+     *
+     * @return maximum number of paced messages
+     */
+    public int getMaximumPacedMessages() {
+        return maximumPacedMessages;
+    }
+
+    /**
+     * Check if a BARRIER_REQUEST following another still in flight, with no command between, shares its reply.
+     *
+     * @return true if barriers are coalesced
+     */
+    public boolean isCoalesceBarriers() {
+        return coalesceBarriers;
+    }
+
+    /**
+     * Check if bursts of FLOW_MODs to OpenFlow 1.4+ switches are sent as bundles.
+     *
+     * @return true if FLOW_MODs are bundled
+     */
+    public boolean isBundleFlowMods() {
+        return bundleFlowMods;
+    }
+
+    /**
+     * Get the maximum number of FLOW_MODs in a bundle.
+     *
+     * @return maximum number of FLOW_MODs in a bundle
+     */
+    public int getMaximumBundleMessages() {
+        return maximumBundleMessages;
+    }
+
+    /**
+     * Get the number of milliseconds after a bundle is opened that it is committed if nothing else has ended it.
+     *
+     * @return milliseconds before an open bundle is committed
+     */
+    public long getBundleCommitDelay() {
+        return bundleCommitDelay;
+    }
+
+    /**
+     * Get the number of milliseconds a switch is kept connected while failing over to another controller.
+     *
+     * @return milliseconds a switch is kept while failing over, or zero to not fail over
+     */
+    public long getFailoverTimeout() {
+        return failoverTimeout;
+    }
+
+    /**
+     * Get the number of milliseconds before retrying a controller address, doubled on each further attempt.
+     *
+     * @return milliseconds before retrying an address
+     */
+    public long getFailoverRetryDelay() {
+        return failoverRetryDelay;
+    }
+
+    /**
+     * Get the maximum number of switch messages queued for each controller while it is unavailable.
+     *
+     * @return maximum number of queued messages
+     */
+    public int getMaximumQueuedMessages() {
+        return maximumQueuedMessages;
+    }
+
+    /**
+     * Get the maximum number of bytes of switch messages queued for each controller while it is unavailable.
+     *
+     * @return maximum number of queued bytes
+     */
+    public int getMaximumQueuedBytes() {
+        return maximumQueuedBytes;
+    }
+
+    /**
+     * Get the maximum number of bytes of switch messages queued for all controllers of every switch of the proxy.
+     *
+     * @return maximum number of queued bytes across the proxy
+     */
+    public long getMaximumTotalQueuedBytes() {
+        return maximumTotalQueuedBytes;
+    }
+
+    /**
+     * Get the directory asynchronous switch messages are spilled to once the queue for a controller is full.
+     *
+     * @return spill directory, or null if messages are dropped
+     */
+    public Path getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * Get the maximum number of bytes spilled for each controller.
+     *
+     * @return maximum number of spilled bytes
+     */
+    public long getMaximumSpillBytes() {
+        return maximumSpillBytes;
+    }
+
+    /**
+     * Get the number of milliseconds after which a spilled PACKET_IN is discarded rather than replayed.
+     *
+     * @return milliseconds a spilled PACKET_IN is kept
+     */
+    public long getSpillPacketInLifetime() {
+        return spillPacketInLifetime;
+    }
+
+    /**
+     * Get the ratio of the mean message rate a worker event loop may exceed before a switch is migrated off it.
+     *
+     * @return ratio of the mean message rate, or zero to never migrate
+     */
+    public double getRebalanceThreshold() {
+        return rebalanceThreshold;
+    }
+
+    /**
+     * Get the number of worker threads running offloaded filters, when virtual threads are not available. Only read
+     * when the workers are first needed.
+     *
+     * @return number of worker threads
+     */
+    public int getFilterWorkers() {
+        return filterWorkers;
+    }
+
+    /**
+     * Get the maximum number of messages per channel waiting on offloaded filters before reading from the channel stops.
+     *
+     * @return maximum number of waiting messages
+     */
+    public int getMaximumPendingFilters() {
+        return maximumPendingFilters;
+    }
+
+    /**
+     * Get the maximum number of injected messages being written to switches before reading from the injector stops.
+     *
+     * @return maximum number of pending injected messages
+     */
+    public int getMaximumPendingInjections() {
+        return maximumPendingInjections;
+    }
+}
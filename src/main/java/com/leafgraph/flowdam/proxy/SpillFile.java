@@ -0,0 +1,291 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.proxy;
+
+import com.leafgraph.flowdam.openflow.Container;
+import com.leafgraph.flowdam.openflow.Type;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * SpillFile is an append only buffer of messages held in a memory mapped file, used for messages to a controller which
+ * is unavailable once more are waiting than may be queued in memory. The file is mapped a segment at a time, so the
+ * operating system pages the messages out to disk rather than them filling the heap.
+ *
+ * Each record is the time it was spilled followed by the OpenFlow message, whose header gives its length. Records never
+ * cross the end of a segment, a record time of SKIP marking the rest of a segment as unused. Positions grow for as long
+ * as anything is held, but the file is a ring of segments, one more than is needed to hold the maximum number of bytes,
+ * so writing wraps around to segments already read rather than growing the file. Once everything has been read the
+ * file is reused from the start. Segments are unmapped as soon as the reader or writer has moved on from them.
+ *
+ * Not thread safe, called with the owning ProxiedConnection's lock held.
+ */
+class SpillFile {
+    /** Largest number of bytes of the file mapped at once. */
+    private static final int MAXIMUM_SEGMENT_SIZE = 16 * 1024 * 1024;
+    /** Smallest number of bytes of the file mapped at once, enough for a record holding the largest message. */
+    private static final int MINIMUM_SEGMENT_SIZE = 256 * 1024;
+    /** Record time marking the rest of a segment as unused. */
+    private static final long SKIP = -1;
+    /** Length of the time preceding each message. */
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    /** Path of the file. */
+    private Path path;
+    /** Channel to the file. */
+    private FileChannel fileChannel;
+    /** Maximum number of bytes which may be held. */
+    private long maximumBytes;
+    /** Number of bytes of the file mapped at once. */
+    private int segmentSize;
+    /** Length of the file, the number of segments in the ring multiplied by their size. */
+    private long fileSize;
+
+    /** Mapping of the segment being written to, or null if none has been mapped. */
+    private MappedByteBuffer writeMapping;
+    /** Mapped segment being written to, or null if none has been mapped. */
+    private ByteBuf writeSegment;
+    /** Position in the file of the segment being written to. */
+    private long writeSegmentStart;
+    /** Position in the file the next record will be written at. */
+    private long writePosition = 0;
+    /** Mapping of the segment being read from, or null if none has been mapped. */
+    private MappedByteBuffer readMapping;
+    /** Mapped segment being read from, or null if none has been mapped. */
+    private ByteBuf readSegment;
+    /** Position in the file of the segment being read from. */
+    private long readSegmentStart;
+    /** Position in the file the next record will be read from. */
+    private long readPosition = 0;
+
+    /** Number of messages held. */
+    private int messageCount = 0;
+    /** Number of PACKET_INs discarded as too old to replay. */
+    private int expiredCount = 0;
+
+    /**
+     * Create a new SpillFile in a directory.
+     *
+     * @param directory directory to create the file in
+     * @param maximumBytes maximum number of bytes which may be held
+     * @throws IOException if the file could not be created
+     */
+    SpillFile(Path directory, long maximumBytes) throws IOException {
+        this.maximumBytes = maximumBytes;
+        segmentSize = (int) Math.max(MINIMUM_SEGMENT_SIZE, Math.min(MAXIMUM_SEGMENT_SIZE, maximumBytes / 8));
+        fileSize = ((maximumBytes + segmentSize - 1) / segmentSize + 1) * segmentSize;
+
+        Files.createDirectories(directory);
+        path = Files.createTempFile(directory, "flowdam-spill-", ".dat");
+        fileChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Append a message.
+     *
+     * @param container message to append
+     * @param now current time in milliseconds
+     * @return true if appended, false if the file is full
+     * @throws IOException if the file could not be mapped
+     */
+    boolean append(Container container, long now) throws IOException {
+        int length = RECORD_HEADER_LENGTH + container.getLength();
+        boolean fits = writeSegment == null || writeSegment.writableBytes() >= length;
+        long start = (fits ? writePosition : writeSegmentStart + segmentSize);
+
+        /* Counting the rest of a segment skipped, so the writer never wraps around onto the segment being read. */
+        if (start + length - readPosition > maximumBytes) {
+            return false;
+        }
+
+        if (writeSegment == null || !fits) {
+            if (writeSegment != null && writeSegment.writableBytes() >= RECORD_HEADER_LENGTH) {
+                writeSegment.writeLong(SKIP);
+            }
+
+            unmap(writeMapping);
+            writeMapping = map(start);
+            writeSegment = Unpooled.wrappedBuffer(writeMapping);
+            writeSegment.clear();
+            writeSegmentStart = start;
+        }
+
+        writeSegment.writeLong(now);
+        container.writeTo(writeSegment);
+        writePosition = writeSegmentStart + writeSegment.writerIndex();
+        messageCount++;
+
+        return true;
+    }
+
+    /**
+     * Read messages in the order they were appended, discarding PACKET_INs which are too old to be of use.
+     *
+     * @param allocator allocator for the buffer read into
+     * @param maximumBytes maximum number of bytes to read, unless a single message is larger
+     * @param expiredBefore time in milliseconds before which PACKET_INs are discarded
+     * @return buffer holding the messages read, or null if there were none left
+     * @throws IOException if the file could not be mapped
+     */
+    ByteBuf read(ByteBufAllocator allocator, int maximumBytes, long expiredBefore) throws IOException {
+        ByteBuf read = null;
+
+        while (readPosition < writePosition) {
+            if (readSegment == null) {
+                readSegmentStart = readPosition - readPosition % segmentSize;
+                readMapping = map(readSegmentStart);
+                readSegment = Unpooled.wrappedBuffer(readMapping);
+                readSegment.readerIndex((int) (readPosition - readSegmentStart));
+            }
+
+            int index = readSegment.readerIndex();
+
+            if (readSegment.readableBytes() < RECORD_HEADER_LENGTH || readSegment.getLong(index) == SKIP) {
+                /* Nothing more was written to this segment. */
+                readPosition = readSegmentStart + segmentSize;
+                unmap(readMapping);
+                readMapping = null;
+                readSegment = null;
+                continue;
+            }
+
+            long time = readSegment.getLong(index);
+            int length = readSegment.getUnsignedShort(index + RECORD_HEADER_LENGTH + 2);
+
+            if (read != null && read.writableBytes() < length) {
+                break;
+            }
+
+            readSegment.skipBytes(RECORD_HEADER_LENGTH);
+            messageCount--;
+
+            if (time < expiredBefore && isPacketIn(readSegment)) {
+                readSegment.skipBytes(length);
+                expiredCount++;
+            } else {
+                if (read == null) {
+                    read = allocator.directBuffer(Math.max(maximumBytes, length));
+                }
+
+                read.writeBytes(readSegment, length);
+            }
+
+            readPosition = readSegmentStart + readSegment.readerIndex();
+        }
+
+        if (readPosition >= writePosition) {
+            /* Caught up with the writer, so start again from the beginning of the file. */
+            readPosition = 0;
+            writePosition = 0;
+            unmap(readMapping);
+            unmap(writeMapping);
+            readMapping = null;
+            writeMapping = null;
+            readSegment = null;
+            writeSegment = null;
+        }
+
+        return read;
+    }
+
+    /**
+     * Check if no messages are held.
+     *
+     * @return true if empty
+     */
+    boolean isEmpty() {
+        return readPosition >= writePosition;
+    }
+
+    /**
+     * Get the number of messages held.
+     *
+     * @return number of messages
+     */
+    int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * Get the number of PACKET_INs discarded as too old to replay, resetting the count.
+     *
+     * @return number of PACKET_INs discarded since last called
+     */
+    int takeExpiredCount() {
+        int expired = expiredCount;
+        expiredCount = 0;
+        return expired;
+    }
+
+    /**
+     * Close and delete the file, discarding anything held.
+     *
+     * @throws IOException if the file could not be deleted
+     */
+    void close() throws IOException {
+        unmap(readMapping);
+        unmap(writeMapping);
+        readMapping = null;
+        writeMapping = null;
+        readSegment = null;
+        writeSegment = null;
+        fileChannel.close();
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Map a segment of the ring, growing the file the first time round.
+     *
+     * @param start position of the segment, which wraps around the file
+     * @return mapping of the segment
+     * @throws IOException if the segment could not be mapped
+     */
+    private MappedByteBuffer map(long start) throws IOException {
+        return fileChannel.map(FileChannel.MapMode.READ_WRITE, start % fileSize, segmentSize);
+    }
+
+    /**
+     * Unmap a segment straight away rather than when the mapping is garbage collected. Nothing may use the mapping
+     * afterwards, messages are only ever copied out of it.
+     *
+     * @param mapping mapping of the segment, or null if none
+     */
+    private static void unmap(MappedByteBuffer mapping) {
+        if (mapping != null) {
+            PlatformDependent.freeDirectBuffer(mapping);
+        }
+    }
+
+    /**
+     * Check if the message at the reader index of a buffer is a PACKET_IN.
+     *
+     * @param byteBuf buffer holding the message
+     * @return true if the message is a PACKET_IN
+     */
+    private static boolean isPacketIn(ByteBuf byteBuf) {
+        int index = byteBuf.readerIndex();
+        return Type.getById(byteBuf.getUnsignedByte(index), byteBuf.getUnsignedByte(index + 1)) == Type.OFPT_PACKET_IN;
+    }
+}
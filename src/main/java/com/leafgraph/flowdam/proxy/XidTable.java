@@ -0,0 +1,289 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.proxy;
+
+import java.util.Arrays;
+
+/**
+ * XidTable maps the transaction IDs assigned by the proxy to whoever sent the original request, without boxing. It is
+ * an open addressed table using linear probing, entries are removed by shifting the rest of their cluster back so no
+ * tombstones are needed.
+ *
+ * Keys are unsigned 32 bit transaction IDs, so -1 is free to mark an empty slot. Entries which are never replied to
+ * (e.g. successful FLOW_MODs) are evicted once older than the timeout.
+ */
+class XidTable {
+    /** Marker for an empty slot, and the value returned when a key is not present. */
+    static final long NONE = -1L;
+    /** Maximum proportion of slots in use before the table grows. */
+    private static final double LOAD_FACTOR = 0.5;
+
+    /** Keys, or NONE for an empty slot. */
+    private long[] keys;
+    /** Values of each slot. */
+    private long[] values;
+    /** Time each slot was filled in milliseconds. */
+    private long[] times;
+    /** Mask to turn a hash into a slot index. */
+    private int mask;
+    /** Number of entries held. */
+    private int size = 0;
+    /** Maximum number of entries which may be held. */
+    private int maximumSize;
+    /** Milliseconds after which an entry is considered orphaned. */
+    private long timeout;
+    /** Time of the last sweep for orphaned entries in milliseconds. */
+    private long lastEviction;
+
+    /**
+     * Construct a new XidTable.
+     *
+     * @param maximumSize maximum number of entries which may be held
+     * @param timeout milliseconds after which an entry is considered orphaned
+     */
+    XidTable(int maximumSize, long timeout) {
+        this.maximumSize = maximumSize;
+        this.timeout = timeout;
+        allocate(Math.min(1024, slotsFor(maximumSize)));
+    }
+
+    /**
+     * Add an entry, replacing any existing value for the key.
+     *
+     * @param key transaction ID assigned by the proxy
+     * @param value value to store
+     * @param now current time in milliseconds
+     * @return true if stored, false if the table is full of entries which have not yet timed out
+     */
+    boolean put(long key, long value, long now) {
+        if (now - lastEviction > timeout) {
+            evict(now);
+        }
+
+        if (size >= maximumSize) {
+            /* Sweeping a full table is costly, so don't repeat it until entries could have aged out. */
+            if (now - lastEviction > timeout / 8) {
+                evict(now);
+            }
+
+            if (size >= maximumSize) {
+                return false;
+            }
+        }
+
+        if (size + 1 > keys.length * LOAD_FACTOR && keys.length < slotsFor(maximumSize)) {
+            resize(keys.length << 1);
+        }
+
+        int index = slot(key);
+
+        while (keys[index] != NONE) {
+            if (keys[index] == key) {
+                values[index] = value;
+                times[index] = now;
+                return true;
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        values[index] = value;
+        times[index] = now;
+        size++;
+
+        return true;
+    }
+
+    /**
+     * Get the value for a key.
+     *
+     * @param key transaction ID assigned by the proxy
+     * @return the value stored, or NONE if not present
+     */
+    long get(long key) {
+        int index = find(key);
+        return index < 0 ? NONE : values[index];
+    }
+
+    /**
+     * Remove an entry.
+     *
+     * @param key transaction ID assigned by the proxy
+     * @return the value which was stored, or NONE if not present
+     */
+    long remove(long key) {
+        int index = find(key);
+
+        if (index < 0) {
+            return NONE;
+        }
+
+        long value = values[index];
+        removeAt(index);
+
+        return value;
+    }
+
+    /**
+     * Remove every entry older than the timeout.
+     *
+     * @param now current time in milliseconds
+     * @return number of entries removed
+     */
+    int evict(long now) {
+        lastEviction = now;
+
+        int removed = 0;
+        int index = 0;
+
+        while (index < keys.length) {
+            if (keys[index] != NONE && now - times[index] > timeout) {
+                /* The slot is refilled by the shift, so look at it again. */
+                removeAt(index);
+                removed++;
+            } else {
+                index++;
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Get the number of entries held.
+     *
+     * @return number of entries
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Find the slot holding a key.
+     *
+     * @param key key to find
+     * @return slot index, or -1 if not present
+     */
+    private int find(long key) {
+        int index = slot(key);
+
+        while (keys[index] != NONE) {
+            if (keys[index] == key) {
+                return index;
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Empty a slot, shifting back any later entries in the cluster which would no longer be found.
+     *
+     * @param index slot to empty
+     */
+    private void removeAt(int index) {
+        int hole = index;
+        int next = (hole + 1) & mask;
+
+        while (keys[next] != NONE) {
+            int home = slot(keys[next]);
+
+            /* Move the entry into the hole if its home slot is not between the hole and where it sits. */
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                times[hole] = times[next];
+                hole = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+
+        keys[hole] = NONE;
+        size--;
+    }
+
+    /**
+     * Grow the table, re-inserting every entry.
+     *
+     * @param slots new number of slots, a power of two
+     */
+    private void resize(int slots) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        long[] oldTimes = times;
+
+        allocate(slots);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != NONE) {
+                int index = slot(oldKeys[i]);
+
+                while (keys[index] != NONE) {
+                    index = (index + 1) & mask;
+                }
+
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+                times[index] = oldTimes[i];
+            }
+        }
+    }
+
+    /**
+     * Allocate empty storage.
+     *
+     * @param slots number of slots, a power of two
+     */
+    private void allocate(int slots) {
+        keys = new long[slots];
+        values = new long[slots];
+        times = new long[slots];
+        mask = slots - 1;
+
+        Arrays.fill(keys, NONE);
+    }
+
+    /**
+     * Get the home slot of a key.
+     *
+     * @param key key to hash
+     * @return slot index
+     */
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * Get the number of slots required to hold a number of entries within the load factor.
+     *
+     * @param entries number of entries
+     * @return number of slots, a power of two
+     */
+    private static int slotsFor(int entries) {
+        int slots = 2;
+
+        while (slots * LOAD_FACTOR < entries) {
+            slots <<= 1;
+        }
+
+        return slots;
+    }
+}
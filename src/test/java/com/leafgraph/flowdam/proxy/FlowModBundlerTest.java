@@ -0,0 +1,246 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.leafgraph.flowdam.openflow.Container;
+import com.leafgraph.flowdam.openflow.Header;
+import com.leafgraph.flowdam.openflow.Type;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests of FlowModBundler, in particular the transaction IDs of its BUNDLE_CONTROLs, which carry the bundle ID and
+ * whether the request is the commit so that the reply can be matched to its bundle.
+ */
+public class FlowModBundlerTest {
+    /** Wire version of OpenFlow 1.3, which has no bundles. */
+    private static final short OF_13 = 4;
+    /** Wire version of OpenFlow 1.4. */
+    private static final short OF_14 = 5;
+    /** Bundle control type of an OPEN_REQUEST. */
+    private static final int OPEN_REQUEST = 0;
+    /** Bundle control type of an OPEN_REPLY. */
+    private static final int OPEN_REPLY = 1;
+    /** Bundle control type of a COMMIT_REQUEST. */
+    private static final int COMMIT_REQUEST = 4;
+
+    /** Messages the bundler has sent to the switch, in order. */
+    private List<Container> output = new ArrayList<>();
+    /** Bundle IDs whose delayed commit has been scheduled. */
+    private List<Integer> scheduled = new ArrayList<>();
+    /** Bundler under test, transaction IDs are left as it assigns them. */
+    private FlowModBundler bundler;
+
+    @Before
+    public void setUp() {
+        bundler = new FlowModBundler(output::add, container -> { }, scheduled::add, 3);
+    }
+
+    /**
+     * The probe's OPEN_REQUEST and the COMMIT_REQUEST of a bundle carry the bundle ID in their transaction ID, the low
+     * bit marking the commit, and the FLOW_MODs held during the probe are added once it is answered.
+     */
+    @Test
+    public void testControlTransactionIds() {
+        Container flowMod = message(OF_14, Type.OFPT_FLOW_MOD, 100, 64);
+        bundler.send(flowMod);
+
+        assertEquals(1, output.size());
+        int bundleId = assertControl(output.get(0), OPEN_REQUEST, false);
+        assertEquals(bundleId, (int) scheduled.get(0));
+
+        assertTrue(bundler.reply(control(output.get(0).getHeader().getTransactionId(), OPEN_REPLY)).isEmpty());
+        assertAdd(output.get(1), bundleId, flowMod);
+
+        Container barrier = message(OF_14, Type.OFPT_BARRIER_REQUEST, 101, 8);
+        bundler.send(barrier);
+
+        assertEquals(bundleId, assertControl(output.get(2), COMMIT_REQUEST, true));
+        assertSame(barrier, output.get(3));
+    }
+
+    /**
+     * Each bundle gets the next ID, and a full bundle is committed without waiting for another message.
+     */
+    @Test
+    public void testFullBundleCommitted() {
+        bundler.send(message(OF_14, Type.OFPT_FLOW_MOD, 100, 64));
+        int firstId = assertControl(output.get(0), OPEN_REQUEST, false);
+        bundler.reply(control(output.get(0).getHeader().getTransactionId(), OPEN_REPLY));
+
+        bundler.send(message(OF_14, Type.OFPT_FLOW_MOD, 101, 64));
+        bundler.send(message(OF_14, Type.OFPT_FLOW_MOD, 102, 64));
+        assertEquals(firstId, assertControl(output.get(4), COMMIT_REQUEST, true));
+
+        bundler.send(message(OF_14, Type.OFPT_FLOW_MOD, 103, 64));
+        assertEquals(firstId + 1, assertControl(output.get(5), OPEN_REQUEST, false));
+        assertEquals(7, output.size());
+    }
+
+    /**
+     * A failed commit is matched back to its bundle by the transaction ID of the error, returning its FLOW_MODs, while
+     * a successful one returns nothing and a reply for an unknown bundle is ignored.
+     */
+    @Test
+    public void testCommitReplyMatchedToBundle() {
+        Container flowMod = message(OF_14, Type.OFPT_FLOW_MOD, 100, 64);
+        bundler.send(flowMod);
+        bundler.reply(control(output.get(0).getHeader().getTransactionId(), OPEN_REPLY));
+        bundler.commit();
+
+        long commitTransactionId = output.get(2).getHeader().getTransactionId();
+        assertTrue(bundler.reply(error(commitTransactionId + 2)).isEmpty());
+
+        List<Container> failed = bundler.reply(error(commitTransactionId));
+        assertEquals(1, failed.size());
+        assertSame(flowMod, failed.get(0));
+        assertTrue(bundler.reply(error(commitTransactionId)).isEmpty());
+    }
+
+    /**
+     * A switch refusing the probe is sent what was held as it was, and everything after is passed straight through.
+     */
+    @Test
+    public void testRefusedProbe() {
+        Container first = message(OF_14, Type.OFPT_FLOW_MOD, 100, 64);
+        Container barrier = message(OF_14, Type.OFPT_BARRIER_REQUEST, 101, 8);
+        bundler.send(first);
+        bundler.send(barrier);
+        bundler.reply(error(output.get(0).getHeader().getTransactionId()));
+
+        assertSame(first, output.get(1));
+        assertSame(barrier, output.get(2));
+
+        Container second = message(OF_14, Type.OFPT_FLOW_MOD, 102, 64);
+        bundler.send(second);
+        assertSame(second, output.get(3));
+    }
+
+    /**
+     * Switches older than OpenFlow 1.4 are never sent bundles.
+     */
+    @Test
+    public void testOldVersionPassedThrough() {
+        Container flowMod = message(OF_13, Type.OFPT_FLOW_MOD, 100, 64);
+        bundler.send(flowMod);
+
+        assertEquals(1, output.size());
+        assertSame(flowMod, output.get(0));
+    }
+
+    /**
+     * Check a message is a BUNDLE_CONTROL whose transaction ID holds its bundle ID and whether it is the commit.
+     *
+     * @param container message to check
+     * @param controlType expected bundle control type
+     * @param commit true if the commit bit should be set
+     * @return bundle ID of the message
+     */
+    private static int assertControl(Container container, int controlType, boolean commit) {
+        byte[] data = container.getData();
+        long transactionId = container.getHeader().getTransactionId();
+        int bundleId = readInt(data, 8);
+
+        assertEquals(Type.OFPT_BUNDLE_CONTROL, container.getMessageType());
+        assertEquals(controlType, ((data[12] & 0xff) << 8) | (data[13] & 0xff));
+        assertEquals(transactionId, readInt(data, 4) & 0xFFFFFFFFL);
+        assertEquals(bundleId, (int) (transactionId >>> 1));
+        assertEquals(commit, (transactionId & 1) != 0);
+
+        return bundleId;
+    }
+
+    /**
+     * Check a message is a BUNDLE_ADD_MESSAGE wrapping a FLOW_MOD in a bundle, sharing the FLOW_MOD's transaction ID.
+     *
+     * @param container message to check
+     * @param bundleId expected bundle ID
+     * @param flowMod FLOW_MOD expected within
+     */
+    private static void assertAdd(Container container, int bundleId, Container flowMod) {
+        byte[] data = container.getData();
+
+        assertEquals(Type.OFPT_BUNDLE_ADD_MESSAGE, container.getMessageType());
+        assertEquals(flowMod.getHeader().getTransactionId(), container.getHeader().getTransactionId());
+        assertEquals(bundleId, readInt(data, 8));
+        assertEquals(16 + flowMod.getLength(), data.length);
+        assertEquals(Type.OFPT_FLOW_MOD.getId(), data[16 + 1]);
+    }
+
+    /**
+     * Construct a BUNDLE_CONTROL reply from the switch.
+     *
+     * @param transactionId transaction ID of the request
+     * @param controlType bundle control type
+     * @return the reply
+     */
+    private static Container control(long transactionId, int controlType) {
+        Container container = message(OF_14, Type.OFPT_BUNDLE_CONTROL, transactionId, 16);
+        container.getData()[13] = (byte) controlType;
+        return container;
+    }
+
+    /**
+     * Construct an error from the switch.
+     *
+     * @param transactionId transaction ID of the request
+     * @return the error
+     */
+    private static Container error(long transactionId) {
+        return message(OF_14, Type.OFPT_ERROR, transactionId, 12);
+    }
+
+    /**
+     * Construct a message with only its header filled in.
+     *
+     * @param version wire version
+     * @param type message type
+     * @param transactionId transaction ID
+     * @param length length of the message
+     * @return the message
+     */
+    private static Container message(short version, Type type, long transactionId, int length) {
+        byte[] data = new byte[length];
+        data[0] = (byte) version;
+        data[1] = (byte) type.getId();
+        data[2] = (byte) (length >> 8);
+        data[3] = (byte) length;
+        data[4] = (byte) (transactionId >> 24);
+        data[5] = (byte) (transactionId >> 16);
+        data[6] = (byte) (transactionId >> 8);
+        data[7] = (byte) transactionId;
+
+        return new Container(new Header(version, (short) type.getId(), length, transactionId), data, type);
+    }
+
+    /**
+     * Read a big endian 32 bit value from raw data.
+     *
+     * @param data raw data
+     * @param offset offset to read at
+     * @return the value
+     */
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.leafgraph.flowdam.openflow.Container;
+import com.leafgraph.flowdam.openflow.Header;
+import com.leafgraph.flowdam.openflow.Type;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Tests of SpillFile, the ring of memory mapped segments holding messages for an unavailable controller.
+ */
+public class SpillFileTest {
+    /** Maximum number of bytes held, four of the smallest segments so the ring is five segments. */
+    private static final long MAXIMUM_BYTES = 1024 * 1024;
+    /** Size of the smallest segment, used for MAXIMUM_BYTES. */
+    private static final int SEGMENT_SIZE = 256 * 1024;
+    /** Length of the time preceding each message in the file. */
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    /** Directory the spill file is created in. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Spill file under test. */
+    private SpillFile spillFile;
+    /** Transaction ID of the next message appended, messages are numbered in order. */
+    private long nextAppended = 0;
+    /** Transaction ID of the next message expected to be read. */
+    private long nextRead = 0;
+
+    @Before
+    public void setUp() throws IOException {
+        spillFile = new SpillFile(folder.getRoot().toPath(), MAXIMUM_BYTES);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        spillFile.close();
+    }
+
+    /**
+     * Messages are read in the order appended while the writer wraps around the ring many times, without the file
+     * growing past the ring.
+     */
+    @Test
+    public void testOrderKeptAcrossWraparound() throws IOException {
+        Random random = new Random(1);
+        long appendedBytes = 0;
+
+        /* Half fill, then keep a backlog so the reader never catches up and the file is never restarted. */
+        while (appendedBytes < MAXIMUM_BYTES / 2) {
+            appendedBytes += append(Type.OFPT_ECHO_REQUEST, 8 + random.nextInt(2000), 0);
+        }
+
+        while (appendedBytes < 20 * MAXIMUM_BYTES) {
+            for (int i = random.nextInt(50); i >= 0; i--) {
+                int length = 8 + random.nextInt(random.nextInt(10) == 0 ? 65000 : 2000);
+
+                if (!spillFile.append(message(Type.OFPT_ECHO_REQUEST, length, nextAppended), 0)) {
+                    break;
+                }
+
+                nextAppended++;
+                appendedBytes += length;
+            }
+
+            readAll(1 + random.nextInt(64 * 1024));
+            assertFalse(spillFile.isEmpty());
+            assertTrue(getFileSize() <= MAXIMUM_BYTES + SEGMENT_SIZE);
+        }
+
+        while (!spillFile.isEmpty()) {
+            readAll(64 * 1024);
+        }
+
+        assertEquals(nextAppended, nextRead);
+        assertEquals(0, spillFile.getMessageCount());
+    }
+
+    /**
+     * Appending fails once the maximum number of bytes are held, and succeeds again once some have been read.
+     */
+    @Test
+    public void testMaximumBytesBound() throws IOException {
+        long held = 0;
+
+        while (spillFile.append(message(Type.OFPT_ECHO_REQUEST, 1000, nextAppended), 0)) {
+            nextAppended++;
+            held += RECORD_HEADER_LENGTH + 1000;
+        }
+
+        assertTrue(held <= MAXIMUM_BYTES);
+        assertTrue(held > MAXIMUM_BYTES - SEGMENT_SIZE);
+        assertEquals(nextAppended, spillFile.getMessageCount());
+
+        /* Reading frees the room the messages took. */
+        readAll(SEGMENT_SIZE);
+        assertTrue(spillFile.append(message(Type.OFPT_ECHO_REQUEST, 1000, nextAppended), 0));
+        nextAppended++;
+
+        while (!spillFile.isEmpty()) {
+            readAll(SEGMENT_SIZE);
+        }
+
+        assertEquals(nextAppended, nextRead);
+    }
+
+    /**
+     * Only PACKET_INs spilled before the expiry time are discarded, and counted.
+     */
+    @Test
+    public void testExpiredPacketInsDiscarded() throws IOException {
+        append(Type.OFPT_PACKET_IN, 64, 100);
+        append(Type.OFPT_ECHO_REQUEST, 64, 100);
+        append(Type.OFPT_PACKET_IN, 64, 300);
+
+        ByteBuf read = spillFile.read(UnpooledByteBufAllocator.DEFAULT, 64 * 1024, 200);
+
+        try {
+            assertEquals(128, read.readableBytes());
+            assertEquals(1, read.getUnsignedInt(4));
+            assertEquals(2, read.getUnsignedInt(64 + 4));
+        } finally {
+            read.release();
+        }
+
+        assertEquals(1, spillFile.takeExpiredCount());
+        assertEquals(0, spillFile.takeExpiredCount());
+        assertTrue(spillFile.isEmpty());
+        assertNull(spillFile.read(UnpooledByteBufAllocator.DEFAULT, 64 * 1024, 200));
+    }
+
+    /**
+     * Closing deletes the file.
+     */
+    @Test
+    public void testCloseDeletesFile() throws IOException {
+        append(Type.OFPT_ECHO_REQUEST, 64, 0);
+        spillFile.close();
+
+        assertEquals(0, folder.getRoot().listFiles().length);
+    }
+
+    /**
+     * Append a message which must fit.
+     *
+     * @param type type of the message
+     * @param length length of the message
+     * @param now time the message is spilled
+     * @return length of the message
+     * @throws IOException if the file could not be mapped
+     */
+    private int append(Type type, int length, long now) throws IOException {
+        assertTrue(spillFile.append(message(type, length, nextAppended), now));
+        nextAppended++;
+        return length;
+    }
+
+    /**
+     * Read a batch of messages, checking they are the next in order.
+     *
+     * @param maximumBytes maximum number of bytes to read, unless a single message is larger
+     * @throws IOException if the file could not be mapped
+     */
+    private void readAll(int maximumBytes) throws IOException {
+        ByteBuf read = spillFile.read(UnpooledByteBufAllocator.DEFAULT, maximumBytes, -1);
+
+        if (read == null) {
+            return;
+        }
+
+        try {
+            while (read.isReadable()) {
+                int length = read.getUnsignedShort(read.readerIndex() + 2);
+                assertEquals(nextRead, read.getUnsignedInt(read.readerIndex() + 4));
+                nextRead++;
+                read.skipBytes(length);
+            }
+        } finally {
+            read.release();
+        }
+    }
+
+    /**
+     * Get the size of the spill file.
+     *
+     * @return size in bytes
+     */
+    private long getFileSize() {
+        long size = 0;
+
+        for (File file : folder.getRoot().listFiles()) {
+            size += file.length();
+        }
+
+        return size;
+    }
+
+    /**
+     * Construct an OpenFlow 1.3 message, its transaction ID numbering it.
+     *
+     * @param type type of the message
+     * @param length length of the message
+     * @param transactionId transaction ID of the message
+     * @return the message
+     */
+    private static Container message(Type type, int length, long transactionId) {
+        byte[] data = new byte[length];
+        data[0] = 4;
+        data[1] = (byte) type.getId();
+        data[2] = (byte) (length >> 8);
+        data[3] = (byte) length;
+        data[4] = (byte) (transactionId >> 24);
+        data[5] = (byte) (transactionId >> 16);
+        data[6] = (byte) (transactionId >> 8);
+        data[7] = (byte) transactionId;
+
+        return new Container(new Header((short) 4, (short) type.getId(), length, transactionId), data, type);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 University of Lancaster
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leafgraph.flowdam.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests of XidTable, the open addressed table of transaction IDs awaiting a reply.
+ */
+public class XidTableTest {
+    /**
+     * Random puts and removes agree with a HashMap, across growth of the table and with keys crowded together so that
+     * removals shift clusters back.
+     */
+    @Test
+    public void testMatchesMap() {
+        XidTable table = new XidTable(100000, 60000);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(1);
+
+        for (int i = 0; i < 200000; i++) {
+            long key = random.nextInt(5000) + (random.nextBoolean() ? 0xFFFFF000L : 0);
+
+            if (random.nextInt(3) == 0) {
+                assertEquals((long) expected.getOrDefault(key, XidTable.NONE), table.remove(key));
+                expected.remove(key);
+            } else {
+                long value = random.nextLong() & 0xFFFFFFFFL;
+                assertTrue(table.put(key, value, 0));
+                expected.put(key, value);
+            }
+
+            assertEquals(expected.size(), table.size());
+        }
+
+        for (long key = 0; key < 5000; key++) {
+            assertEquals((long) expected.getOrDefault(key, XidTable.NONE), table.get(key));
+            assertEquals((long) expected.getOrDefault(key + 0xFFFFF000L, XidTable.NONE), table.get(key + 0xFFFFF000L));
+        }
+    }
+
+    /**
+     * Putting a key already present replaces its value rather than adding an entry.
+     */
+    @Test
+    public void testPutReplaces() {
+        XidTable table = new XidTable(10, 60000);
+
+        assertTrue(table.put(7, 1, 0));
+        assertTrue(table.put(7, 2, 0));
+        assertEquals(1, table.size());
+        assertEquals(2, table.get(7));
+    }
+
+    /**
+     * A full table refuses new entries until old enough ones can be evicted.
+     */
+    @Test
+    public void testFullUntilEvicted() {
+        XidTable table = new XidTable(4, 1000);
+
+        for (long key = 0; key < 4; key++) {
+            assertTrue(table.put(key, key, 100));
+        }
+
+        assertFalse(table.put(4, 4, 200));
+        assertEquals(4, table.size());
+
+        /* Past the timeout the orphaned entries are swept to make room. */
+        assertTrue(table.put(4, 4, 1200));
+        assertEquals(1, table.size());
+        assertEquals(XidTable.NONE, table.get(0));
+        assertEquals(4, table.get(4));
+    }
+
+    /**
+     * Eviction only removes entries older than the timeout, and those left can still be found.
+     */
+    @Test
+    public void testEvictOnlyOld() {
+        XidTable table = new XidTable(1000, 1000);
+
+        for (long key = 0; key < 500; key++) {
+            table.put(key, key, key % 2 == 0 ? 0 : 500);
+        }
+
+        assertEquals(250, table.evict(1200));
+        assertEquals(250, table.size());
+
+        for (long key = 0; key < 500; key++) {
+            assertEquals(key % 2 == 0 ? XidTable.NONE : key, table.get(key));
+        }
+    }
+}